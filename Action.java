@@ -16,6 +16,65 @@ final class Action
       this.repeatCount = repeatCount;
    }
 
+   public ActionKind getKind()
+   {
+      return kind;
+   }
+
+   public int getRepeatCount()
+   {
+      return repeatCount;
+   }
+
+   /*
+      How far from its entity, as the radius of a square of cells, this
+      action reads or writes the world; -1 when it may reach anywhere.
+      Ore and quakes only replace themselves and a vein only fills a cell
+      next to it, while movers search the world for their targets.
+   */
+   public int getReach()
+   {
+      if (this.kind != ActionKind.ACTIVITY)
+      {
+         return -1;
+      }
+
+      switch (this.entity.getKind())
+      {
+      case ORE:
+      case QUAKE:
+         return 0;
+
+      case VEIN:
+         return Point.ORE_REACH;
+
+      default:
+         return -1;
+      }
+   }
+
+   /*
+      Does the read-only part of an activity with a reach ahead of
+      running it.  Runs on pool threads alongside other actions whose
+      squares do not overlap, while nothing writes to the world.
+   */
+   public void prepare()
+   {
+      if (this.entity.getKind() == EntityKind.VEIN)
+      {
+         this.entity.prepareVeinActivity(this.world);
+      }
+   }
+
+   /*
+      Forgets what prepare worked out, for an action that will run later
+      than planned, when the world may have changed around it.
+   */
+   public void discardPreparation()
+   {
+      this.entity.discardPreparation();
+   }
+
    public void executeActivityAction(EventScheduler scheduler)
    {
       switch (this.entity.getKind())
@@ -60,11 +119,15 @@ final class Action
    public void executeAnimationAction(EventScheduler scheduler)
    {
       this.entity.nextImage();
+      if (this.world != null)
+      {
+         this.world.imageChanged(this.entity);
+      }
 
       if (this.repeatCount != 1)
       {
          scheduler.scheduleEvent(this.entity,
-            this.entity.createAnimationAction(
+            this.entity.createAnimationAction(this.world,
                     Math.max(this.repeatCount - 1, 0)),
             this.entity.getAnimationPeriod());
       }
@@ -0,0 +1,259 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/*
+   Frame advances for every animated entity, kept off the event queue.
+   Entities are grouped by animation period, and each group is one array
+   of members advanced together in a single sweep whenever its period
+   comes round, instead of one Action and one Event per entity per frame.
+
+   A member with a repeat count is dropped once it has shown that many
+   frames (quakes); a count of zero animates for as long as the entity is
+   scheduled.  An entity joining a group takes up the group's phase, so
+   its first frame may come up to one period early.
+
+   A frame only touches its own entity, so large groups are swept on a
+   ForkJoinPool when one is set.  The world's cell listeners are built to
+   be told from any thread.
+*/
+final class Animator
+{
+   private static final int INITIAL_GROUP_CAPACITY = 16;
+   private static final int PARALLEL_THRESHOLD = 256;
+
+   private static final class Group
+   {
+      final int period;
+      long nextTime;
+      int size;
+      Entity[] members = new Entity[INITIAL_GROUP_CAPACITY];
+      int[] remaining = new int[INITIAL_GROUP_CAPACITY];
+
+      Group(int period)
+      {
+         this.period = period;
+      }
+   }
+
+   private final Map<Integer, Group> groups;
+   private final Map<Entity, Group> membership;
+   private final Map<Entity, Integer> slots;
+   private WorldModel world;
+   private long nextDueTime;
+   private ForkJoinPool pool;
+
+   public Animator()
+   {
+      this.groups = new HashMap<>();
+      this.membership = new IdentityHashMap<>();
+      this.slots = new IdentityHashMap<>();
+      this.nextDueTime = Long.MAX_VALUE;
+   }
+
+   /*
+      Sweeps large groups on the given pool; null sweeps serially.
+   */
+   public void setParallelPool(ForkJoinPool pool)
+   {
+      this.pool = pool;
+   }
+
+   public boolean isEmpty()
+   {
+      return this.membership.isEmpty();
+   }
+
+   public int size()
+   {
+      return this.membership.size();
+   }
+
+   /*
+      Earliest time that, passed to update, sweeps a group; as for
+      EventQueue.nextDueTime.
+   */
+   public long nextDueTime()
+   {
+      return this.nextDueTime == Long.MAX_VALUE ? Long.MAX_VALUE :
+         this.nextDueTime + 1;
+   }
+
+   /*
+      Starts animating an entity every period milliseconds (already time
+      scaled), replacing any animation it had.  The world, if given, is
+      told about each frame so views can redraw the cell.
+   */
+   public void add(Entity entity, WorldModel world, int period,
+      int repeatCount, long now)
+   {
+      remove(entity);
+      if (world != null)
+      {
+         this.world = world;
+      }
+
+      Group group = this.groups.get(period);
+      if (group == null)
+      {
+         group = new Group(period);
+         group.nextTime = now + period;
+         this.groups.put(period, group);
+         this.nextDueTime = Math.min(this.nextDueTime, group.nextTime);
+      }
+
+      if (group.size == group.members.length)
+      {
+         group.members = Arrays.copyOf(group.members, group.size * 2);
+         group.remaining = Arrays.copyOf(group.remaining, group.size * 2);
+      }
+      group.members[group.size] = entity;
+      group.remaining[group.size] = repeatCount;
+      this.membership.put(entity, group);
+      this.slots.put(entity, group.size);
+      group.size++;
+   }
+
+   public boolean remove(Entity entity)
+   {
+      Group group = this.membership.remove(entity);
+      if (group == null)
+      {
+         return false;
+      }
+
+      removeSlot(group, this.slots.remove(entity));
+      if (group.size == 0)
+      {
+         this.groups.remove(group.period);
+      }
+      return true;
+   }
+
+   public boolean contains(Entity entity)
+   {
+      return this.membership.containsKey(entity);
+   }
+
+   /*
+      Frames still to show, zero meaning without end; only meaningful for
+      an entity that is animating.
+   */
+   public int getRemaining(Entity entity)
+   {
+      return this.membership.get(entity).remaining[this.slots.get(entity)];
+   }
+
+   public long getNextTime(Entity entity)
+   {
+      return this.membership.get(entity).nextTime;
+   }
+
+   /*
+      Sweeps every group due before the given time and returns how many
+      frames were advanced.  A group that fell behind shows one frame and
+      picks up again a period after now rather than replaying the ones it
+      missed, as the per-entity events did.  When skipping, due groups
+      are moved on to their next period without showing a frame, but the
+      frame still counts against repeat counts, so a quake's animation
+      ends on time however long the scheduler stays behind.
+
+      Either way a late group is re-phased onto now: after a stall, under
+      CATCH_UP and SKIP_ANIMATION alike, its frames fall a whole number
+      of periods after the stall ended rather than after the group began.
+   */
+   public int update(long time, long now, boolean skip)
+   {
+      if (time <= this.nextDueTime)
+      {
+         return 0;
+      }
+
+      int advanced = 0;
+      long next = Long.MAX_VALUE;
+      Group[] due = this.groups.values().toArray(new Group[0]);
+      for (Group group : due)
+      {
+         if (group.nextTime < time)
+         {
+            if (!skip)
+            {
+               advanced += sweep(group);
+            }
+            countDown(group);
+            group.nextTime = now + group.period;
+         }
+         if (group.size == 0)
+         {
+            this.groups.remove(group.period);
+         }
+         else
+         {
+            next = Math.min(next, group.nextTime);
+         }
+      }
+      this.nextDueTime = next;
+      return advanced;
+   }
+
+   private int sweep(Group group)
+   {
+      int swept = group.size;
+      if (this.pool != null && swept >= PARALLEL_THRESHOLD)
+      {
+         Entity[] members = group.members;
+         this.pool.submit(() -> IntStream.range(0, swept).parallel()
+            .forEach(i -> advance(members[i]))).join();
+      }
+      else
+      {
+         for (int i = 0; i < swept; i++)
+         {
+            advance(group.members[i]);
+         }
+      }
+      return swept;
+   }
+
+   /*
+      Counts one frame against every member with a repeat count.
+   */
+   private void countDown(Group group)
+   {
+      /* finished repeats are dropped afterwards; walking down keeps the
+         swap-removal from skipping anyone */
+      for (int i = group.size - 1; i >= 0; i--)
+      {
+         if (group.remaining[i] != 0 && --group.remaining[i] == 0)
+         {
+            this.membership.remove(group.members[i]);
+            this.slots.remove(group.members[i]);
+            removeSlot(group, i);
+         }
+      }
+   }
+
+   private void advance(Entity entity)
+   {
+      entity.nextImage();
+      if (this.world != null)
+      {
+         this.world.imageChanged(entity);
+      }
+   }
+
+   private void removeSlot(Group group, int slot)
+   {
+      int last = --group.size;
+      if (slot != last)
+      {
+         group.members[slot] = group.members[last];
+         group.remaining[slot] = group.remaining[last];
+         this.slots.put(group.members[slot], slot);
+      }
+      group.members[last] = null;
+   }
+}
@@ -1,19 +1,20 @@
-import java.util.List;
-import processing.core.PImage;
-
 final class Background
 {
    private String id;
-   private List<PImage> images;
+   private SpriteSequence images;
    private int imageIndex;
 
-   public Background(String id, List<PImage> images)
+   public Background(String id, SpriteSequence images)
    {
       this.id = id;
       this.images = images;
    }
 
-   public List<PImage> getImages(){
+   public String getId(){
+      return id;
+   }
+
+   public SpriteSequence getImages(){
       return images;
    }
 
@@ -0,0 +1,55 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+   The distinct backgrounds of a world, each given a small index so that
+   grids can store a short per cell instead of a reference.  Backgrounds
+   are told apart by id: every background parsed with a given id has the
+   same images, so the first one seen stands in for the rest.
+*/
+final class BackgroundPalette
+{
+   public static final int MAX_SIZE = 1 << 16;
+
+   private final List<Background> backgrounds;
+   private final Map<String, Integer> indices;
+
+   public BackgroundPalette(Background defaultBackground)
+   {
+      this.backgrounds = new ArrayList<>();
+      this.indices = new HashMap<>();
+      indexOf(defaultBackground);
+   }
+
+   public int size()
+   {
+      return this.backgrounds.size();
+   }
+
+   public Background get(int index)
+   {
+      return this.backgrounds.get(index);
+   }
+
+   /*
+      Returns the index for the background's id, adding it if new.
+   */
+   public int indexOf(Background background)
+   {
+      Integer index = this.indices.get(background.getId());
+      if (index == null)
+      {
+         if (this.backgrounds.size() == MAX_SIZE)
+         {
+            throw new IllegalStateException("too many distinct backgrounds");
+         }
+
+         index = this.backgrounds.size();
+         this.backgrounds.add(background);
+         this.indices.put(background.getId(), index);
+      }
+      return index;
+   }
+}
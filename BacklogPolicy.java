@@ -0,0 +1,10 @@
+/*
+   What EventScheduler gives up while a tick budget leaves it behind.
+   CATCH_UP runs everything, just spread over later ticks; SKIP_ANIMATION
+   also holds animation frames back.
+*/
+enum BacklogPolicy
+{
+   CATCH_UP,
+   SKIP_ANIMATION
+}
@@ -0,0 +1,633 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import processing.core.PApplet;
+import processing.core.PImage;
+
+/*
+   Micro-benchmarks for the scheduler, world model and nearest lookups,
+   run against synthetic worlds.  Each benchmark is warmed up, then timed
+   over several iterations; results are printed and written as JSON so
+   runs can be compared between releases.
+
+   usage: Benchmarks [-sizes n,n,...] [-warmup n] [-iterations n]
+                     [-out file]
+*/
+public final class Benchmarks
+{
+   private static final String SIZES_FLAG = "-sizes";
+   private static final String WARMUP_FLAG = "-warmup";
+   private static final String ITERATIONS_FLAG = "-iterations";
+   private static final String OUT_FLAG = "-out";
+
+   private static final int[] DEFAULT_SIZES = {1000, 10000, 100000, 1000000};
+   private static final double[] DENSITIES = {0.05, 0.25, 0.75};
+   private static final double DEFAULT_DENSITY = 0.25;
+   private static final int DEFAULT_WARMUP = 3;
+   private static final int DEFAULT_ITERATIONS = 5;
+   private static final String DEFAULT_OUT = "bench_results.json";
+
+   private static final long SEED = 42;
+   private static final int QUERIES = 10000;
+   private static final int TICK_MILLIS = 100;
+   private static final int TICKS_PER_ITERATION = 10;
+   private static final int MAX_PERIOD = 5000;
+   private static final int TILE_SIZE = 32;
+
+   /* keeps results alive so the JIT cannot discard the work */
+   static volatile long sink;
+
+   private static abstract class Benchmark
+   {
+      final String name;
+      final Map<String, Object> params = new LinkedHashMap<>();
+
+      Benchmark(String name)
+      {
+         this.name = name;
+      }
+
+      /* untimed work done before each iteration */
+      void prepare()
+      {
+      }
+
+      /* timed work; returns the number of operations performed */
+      abstract long run();
+   }
+
+   private static final class Result
+   {
+      final Benchmark benchmark;
+      final double nsPerOp;
+      final double nsPerOpError;
+
+      Result(Benchmark benchmark, double nsPerOp, double nsPerOpError)
+      {
+         this.benchmark = benchmark;
+         this.nsPerOp = nsPerOp;
+         this.nsPerOpError = nsPerOpError;
+      }
+   }
+
+   private final ImageStore imageStore;
+   private final int warmup;
+   private final int iterations;
+
+   public Benchmarks(int warmup, int iterations)
+   {
+      this.imageStore = new ImageStore(new PImage(TILE_SIZE, TILE_SIZE,
+         PApplet.RGB));
+      this.warmup = warmup;
+      this.iterations = iterations;
+   }
+
+   public Result measure(Benchmark benchmark)
+   {
+      for (int i = 0; i < this.warmup; i++)
+      {
+         benchmark.prepare();
+         benchmark.run();
+      }
+
+      double[] samples = new double[this.iterations];
+      for (int i = 0; i < this.iterations; i++)
+      {
+         benchmark.prepare();
+         long start = System.nanoTime();
+         long ops = benchmark.run();
+         samples[i] = (double)(System.nanoTime() - start) / Math.max(ops, 1);
+      }
+
+      double mean = 0;
+      for (double sample : samples)
+      {
+         mean += sample;
+      }
+      mean /= samples.length;
+
+      double variance = 0;
+      for (double sample : samples)
+      {
+         variance += (sample - mean) * (sample - mean);
+      }
+      double error = samples.length > 1 ?
+         Math.sqrt(variance / (samples.length - 1)) : 0;
+
+      Result result = new Result(benchmark, mean, error);
+      System.out.println(String.format("%-24s %-40s %14.1f ns/op (+- %.1f)",
+         benchmark.name, benchmark.params, mean, error));
+      return result;
+   }
+
+   /*
+      Builds a world of roughly the given number of entities, filling the
+      given fraction of cells with a fixed mix of kinds.
+   */
+   public WorldModel createWorld(int numEntities, double density, long seed)
+   {
+      int side = (int)Math.ceil(Math.sqrt(numEntities / density));
+      WorldModel world = new WorldModel(side, side,
+         new Background("default", this.imageStore.getDefaultImages()));
+      Random rand = new Random(seed);
+
+      int placed = 0;
+      while (placed < numEntities)
+      {
+         Point pt = new Point(rand.nextInt(side), rand.nextInt(side));
+         if (world.isOccupied(pt))
+         {
+            continue;
+         }
+
+         world.addEntity(createEntity(pt, placed, rand));
+         placed++;
+      }
+
+      return world;
+   }
+
+   private Entity createEntity(Point pt, int n, Random rand)
+   {
+      String id = Integer.toString(n);
+      int period = 500 + rand.nextInt(MAX_PERIOD);
+      int roll = rand.nextInt(100);
+
+      if (roll < 20)
+      {
+         return pt.createMinerNotFull(id, 2, period, 100 + rand.nextInt(100),
+            Functions.getImageList(this.imageStore, Entity.MINER_KEY));
+      }
+      else if (roll < 50)
+      {
+         return pt.createOre(id, 20000 + rand.nextInt(10000),
+            Functions.getImageList(this.imageStore, Entity.ORE_KEY));
+      }
+      else if (roll < 85)
+      {
+         return pt.createObstacle(id,
+            Functions.getImageList(this.imageStore, Entity.OBSTACLE_KEY));
+      }
+      else if (roll < 95)
+      {
+         return pt.createVein(id, 8000 + rand.nextInt(4000),
+            Functions.getImageList(this.imageStore, Entity.VEIN_KEY));
+      }
+      else
+      {
+         return pt.createBlacksmith(id,
+            Functions.getImageList(this.imageStore, Entity.SMITH_KEY));
+      }
+   }
+
+   private static EventQueue createQueue(String backend)
+   {
+      return backend.equals("wheel") ? new TimingWheelEventQueue() :
+         new HeapEventQueue(new EventComparator());
+   }
+
+   public List<Benchmark> schedulerBenchmarks(int size, String backend)
+   {
+      List<Benchmark> benchmarks = new ArrayList<>();
+      WorldModel world = createWorld(size, DEFAULT_DENSITY, SEED);
+      List<Entity> entities = new ArrayList<>(world.getEntities());
+      Random rand = new Random(SEED);
+      int[] periods = new int[entities.size()];
+      for (int i = 0; i < periods.length; i++)
+      {
+         periods[i] = 1 + rand.nextInt(MAX_PERIOD);
+      }
+
+      benchmarks.add(new Benchmark("scheduleEvent")
+      {
+         private EventScheduler scheduler;
+
+         public void prepare()
+         {
+            this.scheduler = createScheduler(backend, new SimulatedClock(0));
+         }
+
+         public long run()
+         {
+            for (int i = 0; i < periods.length; i++)
+            {
+               Entity entity = entities.get(i);
+               this.scheduler.scheduleEvent(entity,
+                  entity.createActivityAction(world, imageStore), periods[i]);
+            }
+            sink += this.scheduler.size();
+            return periods.length;
+         }
+      });
+
+      benchmarks.add(new Benchmark("updateOnTime")
+      {
+         private EventScheduler scheduler;
+         private SimulatedClock clock;
+
+         /* activities change the world they run in, so each iteration
+            gets a fresh one */
+         public void prepare()
+         {
+            WorldModel fresh = createWorld(size, DEFAULT_DENSITY, SEED);
+            this.clock = new SimulatedClock(0);
+            this.scheduler = createScheduler(backend, this.clock);
+            int i = 0;
+            for (Entity entity : fresh.getEntities())
+            {
+               if (hasActivity(entity.getKind()))
+               {
+                  this.scheduler.scheduleEvent(entity,
+                     entity.createActivityAction(fresh, imageStore),
+                     periods[i++ % periods.length]);
+               }
+            }
+         }
+
+         public long run()
+         {
+            long executed = 0;
+            for (long time = TICK_MILLIS; time <= MAX_PERIOD + TICK_MILLIS;
+               time += TICK_MILLIS)
+            {
+               this.clock.advanceTo(time);
+               executed += this.scheduler.updateOnTime(time);
+            }
+            sink += executed;
+            return executed;
+         }
+      });
+
+      benchmarks.add(new Benchmark("unscheduleAllEvents")
+      {
+         private EventScheduler scheduler;
+
+         public void prepare()
+         {
+            this.scheduler = createScheduler(backend, new SimulatedClock(0));
+            for (int i = 0; i < periods.length; i++)
+            {
+               Entity entity = entities.get(i);
+               this.scheduler.scheduleEvent(entity,
+                  entity.createActivityAction(world, imageStore), periods[i]);
+               this.scheduler.scheduleEvent(entity,
+                  entity.createActivityAction(world, imageStore),
+                  MAX_PERIOD - periods[i]);
+            }
+         }
+
+         public long run()
+         {
+            for (Entity entity : entities)
+            {
+               this.scheduler.unscheduleAllEvents(entity);
+            }
+            sink += this.scheduler.size();
+            return entities.size();
+         }
+      });
+
+      benchmarks.add(new Benchmark("animationTick")
+      {
+         private EventScheduler scheduler;
+         private SimulatedClock clock;
+
+         public void prepare()
+         {
+            this.clock = new SimulatedClock(0);
+            this.scheduler = createScheduler(backend, this.clock);
+            for (Entity entity : entities)
+            {
+               if (entity.getKind() == EntityKind.MINER_NOT_FULL)
+               {
+                  this.scheduler.scheduleAnimation(entity, null, 0);
+               }
+            }
+         }
+
+         public long run()
+         {
+            for (long time = TICK_MILLIS; time <= MAX_PERIOD + TICK_MILLIS;
+               time += TICK_MILLIS)
+            {
+               this.clock.advanceTo(time);
+               this.scheduler.updateOnTime(time);
+            }
+            sink += this.scheduler.getAnimatingCount();
+            return (MAX_PERIOD + TICK_MILLIS) / TICK_MILLIS;
+         }
+      });
+
+      for (Benchmark benchmark : benchmarks)
+      {
+         benchmark.params.put("entities", size);
+         benchmark.params.put("backend", backend);
+      }
+      return benchmarks;
+   }
+
+   /*
+      An empty scheduler on a simulated clock, polled
+      once first: a timing wheel files nothing into its levels until its
+      first poll anchors it, and would otherwise time only appends to its
+      overflow bucket.
+   */
+   private static EventScheduler createScheduler(String backend,
+      SimulatedClock clock)
+   {
+      EventScheduler scheduler = new EventScheduler(1.0, createQueue(backend),
+         clock);
+      scheduler.updateOnTime(0);
+      return scheduler;
+   }
+
+   private static boolean hasActivity(EntityKind kind)
+   {
+      return kind == EntityKind.MINER_FULL ||
+         kind == EntityKind.MINER_NOT_FULL || kind == EntityKind.ORE ||
+         kind == EntityKind.ORE_BLOB || kind == EntityKind.QUAKE ||
+         kind == EntityKind.VEIN;
+   }
+
+   public Benchmark findNearestBenchmark(int size, double density)
+   {
+      WorldModel world = createWorld(size, density, SEED);
+      Random rand = new Random(SEED);
+      Point[] queries = new Point[QUERIES];
+      for (int i = 0; i < queries.length; i++)
+      {
+         queries[i] = new Point(rand.nextInt(world.getNumCols()),
+            rand.nextInt(world.getNumRows()));
+      }
+
+      Benchmark benchmark = new Benchmark("findNearest")
+      {
+         public long run()
+         {
+            for (Point query : queries)
+            {
+               if (query.findNearest(world, EntityKind.ORE).isPresent())
+               {
+                  sink++;
+               }
+            }
+            return queries.length;
+         }
+      };
+      benchmark.params.put("entities", size);
+      benchmark.params.put("density", density);
+      return benchmark;
+   }
+
+   public List<Benchmark> worldBenchmarks(int size)
+   {
+      List<Benchmark> benchmarks = new ArrayList<>();
+      WorldModel world = createWorld(size, DEFAULT_DENSITY, SEED);
+      List<Entity> entities = new ArrayList<>(world.getEntities());
+      Random rand = new Random(SEED);
+
+      benchmarks.add(new Benchmark("moveEntity")
+      {
+         public long run()
+         {
+            long moves = 0;
+            for (int i = 0; i < QUERIES; i++)
+            {
+               Entity entity = entities.get(rand.nextInt(entities.size()));
+               Point pos = entity.position;
+               Point next = new Point(pos.getX() + rand.nextInt(3) - 1,
+                  pos.getY() + rand.nextInt(3) - 1);
+               if (world.withinBounds(next) && !world.isOccupied(next))
+               {
+                  world.moveEntity(entity, next);
+                  moves++;
+               }
+            }
+            sink += moves;
+            return QUERIES;
+         }
+      });
+
+      benchmarks.add(new Benchmark("removeEntityAt")
+      {
+         public long run()
+         {
+            for (int i = 0; i < QUERIES; i++)
+            {
+               Entity entity = entities.get(rand.nextInt(entities.size()));
+               Point pos = entity.position;
+               world.removeEntityAt(pos);
+               entity.position = pos;
+               world.addEntity(entity);
+            }
+            sink += world.getEntities().size();
+            return QUERIES;
+         }
+      });
+
+      for (Benchmark benchmark : benchmarks)
+      {
+         benchmark.params.put("entities", size);
+      }
+      return benchmarks;
+   }
+
+   /*
+      Totals the ore carried by miners, a whole-world sweep over entity
+      state rather than position.
+   */
+   public List<Benchmark> scanBenchmarks(int size)
+   {
+      List<Benchmark> benchmarks = new ArrayList<>();
+      WorldModel world = createWorld(size, DEFAULT_DENSITY, SEED);
+      WorldModel storeWorld = createWorld(size, DEFAULT_DENSITY, SEED);
+      storeWorld.enableEntityStore();
+      EntityStore store = storeWorld.getEntityStore();
+      benchmarks.add(new Benchmark("sumCarriedOre")
+      {
+         public long run()
+         {
+            long carried = 0;
+            for (Entity entity : world.getEntities())
+            {
+               if (entity.getKind() == EntityKind.MINER_NOT_FULL)
+               {
+                  carried += entity.getResourceCount();
+               }
+            }
+            sink += carried;
+            return world.getEntities().size();
+         }
+      });
+      benchmarks.get(0).params.put("storage", "set");
+
+      benchmarks.add(new Benchmark("sumCarriedOre")
+      {
+         public long run()
+         {
+            long carried = 0;
+            for (int id = 0; id < store.size(); id++)
+            {
+               if (store.getKind(id) == EntityKind.MINER_NOT_FULL)
+               {
+                  carried += store.getResourceCount(id);
+               }
+            }
+            sink += carried;
+            return store.size();
+         }
+      });
+      benchmarks.get(1).params.put("storage", "store");
+
+      for (Benchmark benchmark : benchmarks)
+      {
+         benchmark.params.put("entities", size);
+      }
+      return benchmarks;
+   }
+
+   public Benchmark fullTickBenchmark(int size, String backend)
+   {
+      Benchmark benchmark = new Benchmark("fullTick")
+      {
+         private EventScheduler scheduler;
+         private SimulatedClock clock;
+
+         public void prepare()
+         {
+            WorldModel world = createWorld(size, DEFAULT_DENSITY, SEED);
+            this.clock = new SimulatedClock(0);
+            this.scheduler = new EventScheduler(1.0, createQueue(backend),
+               this.clock);
+            this.scheduler.updateOnTime(0);
+            VirtualWorld.scheduleActions(world, this.scheduler,
+               Benchmarks.this.imageStore);
+         }
+
+         public long run()
+         {
+            for (int i = 0; i < TICKS_PER_ITERATION; i++)
+            {
+               this.clock.advanceBy(TICK_MILLIS);
+               sink += this.scheduler.updateOnTime(
+                  this.clock.currentTimeMillis());
+            }
+            return TICKS_PER_ITERATION;
+         }
+      };
+      benchmark.params.put("entities", size);
+      benchmark.params.put("backend", backend);
+      return benchmark;
+   }
+
+   public static void writeJson(List<Result> results, String filename)
+      throws IOException
+   {
+      try (PrintWriter out = new PrintWriter(new FileWriter(filename)))
+      {
+         out.println("{");
+         out.println(String.format("  \"timestamp\": %d,",
+            System.currentTimeMillis()));
+         out.println(String.format("  \"java\": \"%s\",",
+            System.getProperty("java.version")));
+         out.println("  \"results\": [");
+         for (int i = 0; i < results.size(); i++)
+         {
+            Result result = results.get(i);
+            StringBuilder params = new StringBuilder();
+            for (Map.Entry<String, Object> param :
+               result.benchmark.params.entrySet())
+            {
+               if (params.length() > 0)
+               {
+                  params.append(", ");
+               }
+               Object value = param.getValue();
+               params.append(String.format(
+                  value instanceof String ? "\"%s\": \"%s\"" : "\"%s\": %s",
+                  param.getKey(), value));
+            }
+            out.println(String.format("    {\"benchmark\": \"%s\", " +
+               "\"params\": {%s}, \"nsPerOp\": %.3f, \"nsPerOpError\": %.3f, " +
+               "\"opsPerSecond\": %.1f}%s",
+               result.benchmark.name, params, result.nsPerOp,
+               result.nsPerOpError, 1e9 / result.nsPerOp,
+               i + 1 < results.size() ? "," : ""));
+         }
+         out.println("  ]");
+         out.println("}");
+      }
+   }
+
+   public static void main(String [] args) throws IOException
+   {
+      int[] sizes = DEFAULT_SIZES;
+      int warmup = DEFAULT_WARMUP;
+      int iterations = DEFAULT_ITERATIONS;
+      String out = DEFAULT_OUT;
+
+      for (int i = 0; i < args.length; i++)
+      {
+         switch (args[i])
+         {
+            case SIZES_FLAG:
+               String[] parts = args[++i].split(",");
+               sizes = new int[parts.length];
+               for (int j = 0; j < parts.length; j++)
+               {
+                  sizes[j] = Integer.parseInt(parts[j]);
+               }
+               break;
+            case WARMUP_FLAG:
+               warmup = Integer.parseInt(args[++i]);
+               break;
+            case ITERATIONS_FLAG:
+               iterations = Integer.parseInt(args[++i]);
+               break;
+            case OUT_FLAG:
+               out = args[++i];
+               break;
+         }
+      }
+
+      Benchmarks bench = new Benchmarks(warmup, iterations);
+      List<Result> results = new ArrayList<>();
+
+      for (int size : sizes)
+      {
+         for (String backend : new String[] {"heap", "wheel"})
+         {
+            for (Benchmark benchmark : bench.schedulerBenchmarks(size, backend))
+            {
+               results.add(bench.measure(benchmark));
+            }
+         }
+         for (double density : DENSITIES)
+         {
+            results.add(bench.measure(bench.findNearestBenchmark(size,
+               density)));
+         }
+         for (Benchmark benchmark : bench.worldBenchmarks(size))
+         {
+            results.add(bench.measure(benchmark));
+         }
+         for (Benchmark benchmark : bench.scanBenchmarks(size))
+         {
+            results.add(bench.measure(benchmark));
+         }
+         for (String backend : new String[] {"heap", "wheel"})
+         {
+            results.add(bench.measure(bench.fullTickBenchmark(size,
+               backend)));
+         }
+      }
+
+      writeJson(results, out);
+      System.out.println("results written to " + out);
+   }
+}
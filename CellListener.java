@@ -0,0 +1,9 @@
+/*
+   Told about cells whose occupant, background or image has changed.
+   Image changes come from animation, which may run on parallel tick
+   workers, so implementations must tolerate concurrent calls.
+*/
+interface CellListener
+{
+   void cellChanged(int x, int y);
+}
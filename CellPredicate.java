@@ -0,0 +1,9 @@
+/*
+   Test on a grid cell given by its coordinates.  The world is passed in
+   rather than captured so that predicates can be shared constants and
+   checking a cell allocates nothing.
+*/
+interface CellPredicate
+{
+   boolean test(WorldModel world, int x, int y);
+}
@@ -0,0 +1,344 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/*
+   Append-only checkpoint log: one full WorldSnapshot followed by delta
+   records, each holding only the cells the world's DirtyJournal saw
+   change since the previous checkpoint.  Every so many deltas the log is
+   compacted by writing a fresh full snapshot to a new file and moving it
+   over the old one, so a crash mid-compaction leaves the old log intact.
+
+   A delta also replaces the pending events of every entity whose events
+   the scheduler's journal saw change, and of every entity written out
+   with a dirty cell, since that entity is recreated on restore.  Entities
+   that sat idle keep the events they had.
+
+   Animation is cosmetic and is not journaled: entities that have not
+   changed cell keep the image index of the last full snapshot, and an
+   animation restarts its period and keeps the repeat count it had when
+   its entity was last journaled.  A resumed world therefore matches the
+   one that wrote the log in cells, entities and pending events, but not
+   necessarily in the frames on screen.
+
+   Layout: int magic, int version, then records of byte type, int length,
+   int CRC-32 of the payload and that many bytes of payload.  The length
+   and CRC are filled in once the payload is out, so a record torn by a
+   crash fails its check; restoring stops at the last complete record.
+   A delta payload is
+
+      int cellCount, cellCount * (int x, int y, string background,
+         byte occupied, [entity])
+      int replacedCount, replacedCount * (int x, int y)
+      int eventCount, eventCount * (int x, int y, byte kind, int repeat,
+         long delay)
+
+   with entities encoded as in WorldSnapshot, and the entities whose
+   events are replaced, and the events themselves, naming their entity by
+   its cell.
+*/
+final class CheckpointLog
+{
+   public static final int MAGIC = 0x56574c31;
+   public static final int VERSION = 3;
+   public static final int DEFAULT_COMPACT_EVERY = 32;
+
+   private static final byte FULL = 1;
+   private static final byte DELTA = 2;
+   private static final int HEADER_BYTES = 8;
+   private static final int RECORD_HEADER_BYTES = 1 + 2 * Integer.BYTES;
+   private static final ActionKind[] ACTION_KINDS = ActionKind.values();
+
+   private interface Payload
+   {
+      void write(WorldSnapshot.Writer out) throws IOException;
+   }
+
+   private final Path path;
+   private final int compactEvery;
+   private int deltasSinceFull;
+
+   public CheckpointLog(Path path)
+   {
+      this(path, DEFAULT_COMPACT_EVERY);
+   }
+
+   public CheckpointLog(Path path, int compactEvery)
+   {
+      this.path = path;
+      this.compactEvery = compactEvery;
+      this.deltasSinceFull = -1;
+   }
+
+   /*
+      Appends the changes since the last checkpoint, or starts a new log
+      with a full snapshot when there is no base yet or enough deltas have
+      piled up.
+   */
+   public void checkpoint(WorldModel world, EventScheduler scheduler)
+      throws IOException
+   {
+      if (this.deltasSinceFull < 0 || world.getJournal() == null ||
+         this.deltasSinceFull >= this.compactEvery)
+      {
+         compact(world, scheduler);
+      }
+      else
+      {
+         appendDelta(world, scheduler);
+      }
+   }
+
+   public void compact(WorldModel world, EventScheduler scheduler)
+      throws IOException
+   {
+      world.enableJournal();
+      scheduler.enableJournal();
+
+      Path tmp = Paths.get(this.path.toString() + ".tmp");
+      try (FileChannel channel = FileChannel.open(tmp,
+         StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+         StandardOpenOption.TRUNCATE_EXISTING))
+      {
+         WorldSnapshot.Writer out = new WorldSnapshot.Writer(channel);
+         out.putInt(MAGIC);
+         out.putInt(VERSION);
+         out.flush();
+         writeRecord(channel, FULL,
+            o -> WorldSnapshot.write(o, world, scheduler));
+         channel.force(false);
+      }
+
+      world.getJournal().clear();
+      scheduler.clearJournal();
+      Files.move(tmp, this.path, StandardCopyOption.REPLACE_EXISTING,
+         StandardCopyOption.ATOMIC_MOVE);
+      this.deltasSinceFull = 0;
+   }
+
+   private void appendDelta(WorldModel world, EventScheduler scheduler)
+      throws IOException
+   {
+      long[] cells = world.getJournal().drain();
+      Set<Entity> changed = scheduler.drainJournal();
+      try (FileChannel channel = FileChannel.open(this.path,
+         StandardOpenOption.WRITE))
+      {
+         channel.position(channel.size());
+         writeRecord(channel, DELTA,
+            out -> writeDelta(out, cells, changed, world, scheduler));
+         channel.force(false);
+      }
+      this.deltasSinceFull++;
+   }
+
+   /*
+      Writes a record at the channel's position, filling in its length
+      and CRC once the payload is out.
+   */
+   private static void writeRecord(FileChannel channel, byte type,
+      Payload payload) throws IOException
+   {
+      WorldSnapshot.Writer out = new WorldSnapshot.Writer(channel);
+      long start = channel.position();
+      out.putByte(type);
+      out.putInt(0);
+      out.putInt(0);
+      out.flush();
+
+      CRC32 crc = new CRC32();
+      out.setChecksum(crc);
+      payload.write(out);
+      out.flush();
+
+      long end = channel.position();
+      ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES);
+      header.putInt((int)(end - start - RECORD_HEADER_BYTES));
+      header.putInt((int)crc.getValue());
+      header.flip();
+      while (header.hasRemaining())
+      {
+         channel.write(header, start + 1 + header.position());
+      }
+   }
+
+   private static void writeDelta(WorldSnapshot.Writer out, long[] cells,
+      Set<Entity> changed, WorldModel world, EventScheduler scheduler)
+      throws IOException
+   {
+      out.putInt(cells.length);
+      for (long cell : cells)
+      {
+         int x = DirtyJournal.getX(cell);
+         int y = DirtyJournal.getY(cell);
+         out.putInt(x);
+         out.putInt(y);
+         out.putString(world.getBackgroundCell(x, y).getId());
+
+         Entity occupant = world.getOccupancyCell(x, y);
+         out.putByte((byte)(occupant != null ? 1 : 0));
+         if (occupant != null)
+         {
+            WorldSnapshot.writeEntity(out, occupant);
+            changed.add(occupant);
+         }
+      }
+
+      /* entities removed since they changed are left out */
+      List<Entity> replaced = new ArrayList<>();
+      for (Entity entity : changed)
+      {
+         Point pos = entity.position;
+         if (world.withinBounds(pos) && world.getOccupancyCell(pos) == entity)
+         {
+            replaced.add(entity);
+         }
+      }
+
+      out.putInt(replaced.size());
+      for (Entity entity : replaced)
+      {
+         out.putInt(entity.position.getX());
+         out.putInt(entity.position.getY());
+      }
+
+      List<Event> events = WorldSnapshot.collectEvents(replaced, world,
+         scheduler);
+
+      long now = scheduler.getClock().currentTimeMillis();
+      out.putInt(events.size());
+      for (Event event : events)
+      {
+         out.putInt(event.getEntity().position.getX());
+         out.putInt(event.getEntity().position.getY());
+         out.putByte((byte)event.getAction().getKind().ordinal());
+         out.putInt(event.getAction().getRepeatCount());
+         out.putLong(event.getTime() - now);
+      }
+   }
+
+   /*
+      Rebuilds a world from a log into an empty world and scheduler: the
+      full snapshot first, then each delta in order, up to the first
+      record that is cut short or fails its CRC.
+   */
+   public static void restore(Path path, WorldModel world,
+      EventScheduler scheduler, ImageStore imageStore) throws IOException
+   {
+      try (FileChannel channel = FileChannel.open(path,
+         StandardOpenOption.READ))
+      {
+         ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+            channel.size());
+         if (in.remaining() < HEADER_BYTES || in.getInt() != MAGIC)
+         {
+            throw new IOException("not a checkpoint log");
+         }
+         int version = in.getInt();
+         if (version != VERSION)
+         {
+            throw new IOException(String.format(
+               "unsupported checkpoint log version %d", version));
+         }
+
+         Map<String, Background> backgrounds = new HashMap<>();
+         boolean haveBase = false;
+         while (in.remaining() >= RECORD_HEADER_BYTES)
+         {
+            byte type = in.get();
+            int length = in.getInt();
+            int checksum = in.getInt();
+            if (length <= 0 || length > in.remaining())
+            {
+               break;
+            }
+
+            ByteBuffer record = in.slice();
+            record.limit(length);
+            CRC32 crc = new CRC32();
+            crc.update(record.duplicate());
+            if ((int)crc.getValue() != checksum)
+            {
+               break;
+            }
+            in.position(in.position() + length);
+
+            if (type == FULL)
+            {
+               WorldSnapshot.read(record, world, scheduler, imageStore);
+               haveBase = true;
+            }
+            else if (type == DELTA && haveBase)
+            {
+               applyDelta(record, world, scheduler, imageStore,
+                  backgrounds);
+            }
+            else
+            {
+               throw new IOException(String.format(
+                  "unexpected checkpoint record type %d", type));
+            }
+         }
+
+         if (!haveBase)
+         {
+            throw new IOException("checkpoint log has no complete snapshot");
+         }
+      }
+   }
+
+   private static void applyDelta(ByteBuffer in, WorldModel world,
+      EventScheduler scheduler, ImageStore imageStore,
+      Map<String, Background> backgrounds)
+   {
+      int cellCount = in.getInt();
+      for (int i = 0; i < cellCount; i++)
+      {
+         Point pos = world.pointAt(in.getInt(), in.getInt());
+         String id = WorldSnapshot.getString(in);
+         Background background = backgrounds.computeIfAbsent(id,
+            key -> new Background(key,
+               Functions.getImageList(imageStore, key)));
+         world.setBackground(pos, background);
+
+         Entity before = world.getOccupancyCell(pos);
+         if (before != null)
+         {
+            scheduler.unscheduleAllEvents(before);
+            world.removeEntityAt(pos);
+         }
+         if (in.get() != 0)
+         {
+            world.addEntity(WorldSnapshot.readEntity(in, world, imageStore));
+         }
+      }
+
+      int replacedCount = in.getInt();
+      for (int i = 0; i < replacedCount; i++)
+      {
+         scheduler.unscheduleAllEvents(
+            world.getOccupancyCell(in.getInt(), in.getInt()));
+      }
+
+      long now = scheduler.getClock().currentTimeMillis();
+      int eventCount = in.getInt();
+      for (int i = 0; i < eventCount; i++)
+      {
+         Entity entity = world.getOccupancyCell(in.getInt(), in.getInt());
+         ActionKind kind = ACTION_KINDS[in.get()];
+         WorldSnapshot.restoreEvent(entity, kind, in.getInt(),
+            now + in.getLong(), world, scheduler, imageStore);
+      }
+   }
+}
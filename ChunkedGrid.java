@@ -0,0 +1,238 @@
+/*
+   Grid split into fixed-size square chunks that are only allocated once
+   something other than the default background or an empty cell is stored
+   in them.  Reads from a missing chunk see the default background and no
+   occupant, so memory scales with the populated area rather than with the
+   world's extent.  A chunk whose last occupant leaves, with every
+   background in it back to the default, is queued for release rather
+   than freed on the spot: a mover stepping inside an otherwise empty
+   chunk briefly leaves it empty on every step.  The queue is swept once
+   it fills, freeing the chunks that are still empty.  Backgrounds are
+   kept as indices into a palette shared by every chunk.
+*/
+final class ChunkedGrid
+   implements WorldGrid
+{
+   public static final int CHUNK_BITS = 6;
+   public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+   private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+   private static final int CHUNK_CELLS = CHUNK_SIZE * CHUNK_SIZE;
+   private static final int RELEASE_BATCH = 16;
+
+   private static final class Chunk
+   {
+      /* the default background is palette index 0 */
+      final short background[];
+      final Entity occupancy[];
+      final Point points[];
+      /* cells with an occupant, and cells with a non-default background */
+      int occupied;
+      int painted;
+      boolean queued;
+
+      Chunk()
+      {
+         this.background = new short[CHUNK_CELLS];
+         this.occupancy = new Entity[CHUNK_CELLS];
+         this.points = new Point[CHUNK_CELLS];
+      }
+   }
+
+   private final Background defaultBackground;
+   private final BackgroundPalette palette;
+   private final int numCols;
+   private final int chunkCols;
+   private final Chunk chunks[];
+   private int allocatedChunks;
+
+   /* chunk indices that were empty when queued */
+   private final int emptyChunks[];
+   private int emptyCount;
+
+   public ChunkedGrid(int numRows, int numCols, Background defaultBackground)
+   {
+      this.defaultBackground = defaultBackground;
+      this.palette = new BackgroundPalette(defaultBackground);
+      this.numCols = numCols;
+      this.chunkCols = (numCols + CHUNK_MASK) >> CHUNK_BITS;
+      int chunkRows = (numRows + CHUNK_MASK) >> CHUNK_BITS;
+      this.chunks = new Chunk[chunkRows * this.chunkCols];
+      this.emptyChunks = new int[RELEASE_BATCH];
+   }
+
+   public int getAllocatedChunks()
+   {
+      return allocatedChunks;
+   }
+
+   public Background getBackground(int x, int y)
+   {
+      Chunk chunk = chunkAt(x, y);
+      return chunk == null ? this.defaultBackground :
+         this.palette.get(chunk.background[cellIndex(x, y)] & 0xFFFF);
+   }
+
+   public void setBackground(int x, int y, Background background)
+   {
+      int index = this.palette.indexOf(background);
+      Chunk chunk = chunkAt(x, y);
+      if (chunk == null)
+      {
+         if (index == 0)
+         {
+            return;
+         }
+         chunk = allocate(x, y);
+      }
+      int idx = cellIndex(x, y);
+      if (chunk.background[idx] == 0 && index != 0)
+      {
+         chunk.painted++;
+      }
+      else if (chunk.background[idx] != 0 && index == 0)
+      {
+         chunk.painted--;
+      }
+      chunk.background[idx] = (short)index;
+      releaseIfEmpty(chunk, x, y);
+   }
+
+   /*
+      Runs stop at chunk edges; a missing chunk is a single run.
+   */
+   public int getBackgroundRunEnd(int x, int y, int limit)
+   {
+      int chunkEnd = Math.min(Math.min(limit, this.numCols),
+         (x | CHUNK_MASK) + 1);
+      Chunk chunk = chunkAt(x, y);
+      if (chunk == null)
+      {
+         return chunkEnd;
+      }
+
+      int idx = cellIndex(x, y);
+      short value = chunk.background[idx];
+      int end = x + 1;
+      while (end < chunkEnd && chunk.background[++idx] == value)
+      {
+         end++;
+      }
+      return end;
+   }
+
+   /*
+      Chunks are already compact; nothing to do.
+   */
+   public void compactBackground()
+   {
+   }
+
+   public Entity getOccupant(int x, int y)
+   {
+      Chunk chunk = chunkAt(x, y);
+      return chunk == null ? null : chunk.occupancy[cellIndex(x, y)];
+   }
+
+   public void setOccupant(int x, int y, Entity entity)
+   {
+      Chunk chunk = chunkAt(x, y);
+      if (chunk == null)
+      {
+         if (entity == null)
+         {
+            return;
+         }
+         chunk = allocate(x, y);
+      }
+
+      int idx = cellIndex(x, y);
+      if (chunk.occupancy[idx] == null && entity != null)
+      {
+         chunk.occupied++;
+      }
+      else if (chunk.occupancy[idx] != null && entity == null)
+      {
+         chunk.occupied--;
+      }
+      chunk.occupancy[idx] = entity;
+      releaseIfEmpty(chunk, x, y);
+   }
+
+   /*
+      Points are only cached in allocated chunks; asking about an empty
+      stretch of the world must not allocate chunks for it.
+   */
+   public Point pointAt(int x, int y)
+   {
+      Chunk chunk = chunkAt(x, y);
+      if (chunk == null)
+      {
+         return new Point(x, y);
+      }
+
+      int idx = cellIndex(x, y);
+      Point pt = chunk.points[idx];
+      if (pt == null)
+      {
+         pt = new Point(x, y);
+         chunk.points[idx] = pt;
+      }
+      return pt;
+   }
+
+   private Chunk chunkAt(int x, int y)
+   {
+      return this.chunks[(y >> CHUNK_BITS) * this.chunkCols +
+         (x >> CHUNK_BITS)];
+   }
+
+   private Chunk allocate(int x, int y)
+   {
+      Chunk chunk = new Chunk();
+      this.chunks[(y >> CHUNK_BITS) * this.chunkCols + (x >> CHUNK_BITS)] =
+         chunk;
+      this.allocatedChunks++;
+      return chunk;
+   }
+
+   /*
+      Queues a chunk that has just become empty.  A full queue is swept
+      first, so the newest chunk always outlives the next few steps.
+   */
+   private void releaseIfEmpty(Chunk chunk, int x, int y)
+   {
+      if (chunk.occupied != 0 || chunk.painted != 0 || chunk.queued)
+      {
+         return;
+      }
+
+      if (this.emptyCount == RELEASE_BATCH)
+      {
+         releaseEmptyChunks();
+      }
+      chunk.queued = true;
+      this.emptyChunks[this.emptyCount++] =
+         (y >> CHUNK_BITS) * this.chunkCols + (x >> CHUNK_BITS);
+   }
+
+   private void releaseEmptyChunks()
+   {
+      for (int i = 0; i < this.emptyCount; i++)
+      {
+         Chunk chunk = this.chunks[this.emptyChunks[i]];
+         chunk.queued = false;
+         if (chunk.occupied == 0 && chunk.painted == 0)
+         {
+            this.chunks[this.emptyChunks[i]] = null;
+            this.allocatedChunks--;
+         }
+      }
+      this.emptyCount = 0;
+   }
+
+   private static int cellIndex(int x, int y)
+   {
+      return ((y & CHUNK_MASK) << CHUNK_BITS) | (x & CHUNK_MASK);
+   }
+}
@@ -0,0 +1,9 @@
+/*
+   Source of the current time, in milliseconds, for the event scheduler.
+*/
+interface Clock
+{
+   Clock SYSTEM = System::currentTimeMillis;
+
+   long currentTimeMillis();
+}
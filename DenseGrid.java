@@ -0,0 +1,171 @@
+import java.util.Arrays;
+
+/*
+   Grid backed by full row-major arrays; the fastest choice when the world
+   is small enough to allocate every cell up front.
+
+   Backgrounds are stored as palette indices, one short per cell.  Once a
+   world is loaded, compactBackground run-length encodes the rows where
+   that saves space; a later write to such a row expands it again.
+*/
+final class DenseGrid
+   implements WorldGrid
+{
+   private final int numCols;
+   private final BackgroundPalette palette;
+   private final short background[][];
+   private final int runStarts[][];
+   private final short runValues[][];
+   private final Entity occupancy[];
+   private final Point points[];
+
+   public DenseGrid(int numRows, int numCols, Background defaultBackground)
+   {
+      this.numCols = numCols;
+      this.palette = new BackgroundPalette(defaultBackground);
+      this.background = new short[numRows][numCols];
+      this.runStarts = new int[numRows][];
+      this.runValues = new short[numRows][];
+      this.occupancy = new Entity[numRows * numCols];
+      this.points = new Point[numRows * numCols];
+   }
+
+   public Background getBackground(int x, int y)
+   {
+      return this.palette.get(backgroundIndex(x, y));
+   }
+
+   public void setBackground(int x, int y, Background background)
+   {
+      int index = this.palette.indexOf(background);
+      if (this.background[y] == null)
+      {
+         if (backgroundIndex(x, y) == index)
+         {
+            return;
+         }
+         expandRow(y);
+      }
+      this.background[y][x] = (short)index;
+   }
+
+   public int getBackgroundRunEnd(int x, int y, int limit)
+   {
+      int end;
+      if (this.background[y] != null)
+      {
+         short row[] = this.background[y];
+         end = x + 1;
+         while (end < limit && end < this.numCols && row[end] == row[x])
+         {
+            end++;
+         }
+      }
+      else
+      {
+         int run = findRun(y, x);
+         end = run + 1 < this.runStarts[y].length ?
+            this.runStarts[y][run + 1] : this.numCols;
+      }
+      return Math.min(end, limit);
+   }
+
+   public void compactBackground()
+   {
+      for (int y = 0; y < this.background.length; y++)
+      {
+         short row[] = this.background[y];
+         if (row == null)
+         {
+            continue;
+         }
+
+         int runs = 1;
+         for (int x = 1; x < this.numCols; x++)
+         {
+            if (row[x] != row[x - 1])
+            {
+               runs++;
+            }
+         }
+
+         /* a run costs an int and a short against a short per cell */
+         if (runs * 3 >= this.numCols)
+         {
+            continue;
+         }
+
+         int starts[] = new int[runs];
+         short values[] = new short[runs];
+         int run = 0;
+         for (int x = 0; x < this.numCols; x++)
+         {
+            if (x == 0 || row[x] != row[x - 1])
+            {
+               starts[run] = x;
+               values[run] = row[x];
+               run++;
+            }
+         }
+
+         this.runStarts[y] = starts;
+         this.runValues[y] = values;
+         this.background[y] = null;
+      }
+   }
+
+   public Entity getOccupant(int x, int y)
+   {
+      return this.occupancy[y * this.numCols + x];
+   }
+
+   public void setOccupant(int x, int y, Entity entity)
+   {
+      this.occupancy[y * this.numCols + x] = entity;
+   }
+
+   public Point pointAt(int x, int y)
+   {
+      int idx = y * this.numCols + x;
+      Point pt = this.points[idx];
+      if (pt == null)
+      {
+         pt = new Point(x, y);
+         this.points[idx] = pt;
+      }
+      return pt;
+   }
+
+   private int backgroundIndex(int x, int y)
+   {
+      short row[] = this.background[y];
+      if (row != null)
+      {
+         return row[x] & 0xFFFF;
+      }
+      return this.runValues[y][findRun(y, x)] & 0xFFFF;
+   }
+
+   /* index of the run in an encoded row that covers column x */
+   private int findRun(int y, int x)
+   {
+      int pos = Arrays.binarySearch(this.runStarts[y], x);
+      return pos >= 0 ? pos : -pos - 2;
+   }
+
+   private void expandRow(int y)
+   {
+      short row[] = new short[this.numCols];
+      int starts[] = this.runStarts[y];
+      short values[] = this.runValues[y];
+      for (int run = 0; run < starts.length; run++)
+      {
+         int end = run + 1 < starts.length ? starts[run + 1] : this.numCols;
+         Arrays.fill(row, starts[run], end, values[run]);
+      }
+
+      this.background[y] = row;
+      this.runStarts[y] = null;
+      this.runValues[y] = null;
+   }
+}
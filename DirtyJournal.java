@@ -0,0 +1,84 @@
+import java.util.Arrays;
+
+/*
+   Cells changed since the journal was last drained.  Changes are appended
+   as packed coordinates; duplicates are only squeezed out when the
+   journal fills up or is drained, so marking a cell is an array store.
+   Memory is bounded by the number of distinct cells touched.
+*/
+final class DirtyJournal
+{
+   private static final int INITIAL_CAPACITY = 256;
+
+   private long cells[];
+   private int size;
+
+   public DirtyJournal()
+   {
+      this.cells = new long[INITIAL_CAPACITY];
+   }
+
+   public void markCell(int x, int y)
+   {
+      if (this.size == this.cells.length)
+      {
+         squeeze();
+         if (this.size > this.cells.length / 2)
+         {
+            this.cells = Arrays.copyOf(this.cells, this.cells.length * 2);
+         }
+      }
+      this.cells[this.size++] = pack(x, y);
+   }
+
+   public boolean isEmpty()
+   {
+      return this.size == 0;
+   }
+
+   /*
+      Returns the distinct changed cells, in row-major order, and empties
+      the journal.
+   */
+   public long[] drain()
+   {
+      squeeze();
+      long drained[] = Arrays.copyOf(this.cells, this.size);
+      this.size = 0;
+      return drained;
+   }
+
+   public void clear()
+   {
+      this.size = 0;
+   }
+
+   public static int getX(long cell)
+   {
+      return (int)cell;
+   }
+
+   public static int getY(long cell)
+   {
+      return (int)(cell >>> 32);
+   }
+
+   private static long pack(int x, int y)
+   {
+      return ((long)y << 32) | (x & 0xffffffffL);
+   }
+
+   private void squeeze()
+   {
+      Arrays.sort(this.cells, 0, this.size);
+      int unique = 0;
+      for (int i = 0; i < this.size; i++)
+      {
+         if (unique == 0 || this.cells[i] != this.cells[unique - 1])
+         {
+            this.cells[unique++] = this.cells[i];
+         }
+      }
+      this.size = unique;
+   }
+}
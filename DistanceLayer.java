@@ -0,0 +1,395 @@
+import java.util.Arrays;
+import java.util.Optional;
+
+/*
+   Multi-source distance field from every entity of one kind.  Each cell
+   records its path distance to the nearest such entity and which entity
+   that is, so both the nearest target and the next step toward it are
+   array lookups.
+
+   The layer is patched rather than rebuilt as the world changes: a new
+   source or a freed cell sends out a wave of shorter distances, and a
+   removed source clears only the cells it was nearest to before they are
+   refilled from their neighbors.  A new wall likewise clears only the
+   cells downstream of it, each one step further out than a cell already
+   cleared, since only those can have had every shortest path run through
+   it; a wall on a cell no route reached changes nothing.  Movers never
+   affect the layer; it only treats static entities as walls.
+
+   Every step costs one, so waves are breadth-first over an int ring
+   buffer.  The cells a patch starts from are sorted by distance and
+   merged into the queue as it drains, which keeps cells leaving it in
+   order of distance.
+*/
+final class DistanceLayer
+{
+   public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+   private static final int[] STEP_X = {1, -1, 0, 0};
+   private static final int[] STEP_Y = {0, 0, 1, -1};
+
+   private final WorldModel world;
+   private final EntityKind kind;
+   private final int numRows;
+   private final int numCols;
+   private final int[] distance;
+   private final int[] origin;
+   private boolean stale;
+
+   /* wave scratch: starting cells as (distance << 32 | cell), and a ring
+      buffer of the cells reached from them */
+   private long[] seeds;
+   private int seedCount;
+   private final int[] queue;
+   private int head;
+   private int tail;
+
+   /* cells cleared by a patch */
+   private int[] region;
+
+   public DistanceLayer(WorldModel world, EntityKind kind)
+   {
+      this.world = world;
+      this.kind = kind;
+      this.numRows = world.getNumRows();
+      this.numCols = world.getNumCols();
+      this.distance = new int[this.numRows * this.numCols];
+      this.origin = new int[this.numRows * this.numCols];
+      this.stale = true;
+      this.seeds = new long[16];
+      this.queue = new int[this.numRows * this.numCols];
+      this.region = new int[16];
+   }
+
+   public EntityKind getKind()
+   {
+      return kind;
+   }
+
+   public void sourceAdded(Point pos)
+   {
+      if (this.stale)
+      {
+         return;
+      }
+
+      seed(index(pos.getX(), pos.getY()));
+      propagate();
+   }
+
+   public void sourceRemoved(Point pos)
+   {
+      if (this.stale)
+      {
+         return;
+      }
+
+      /* clear every cell this source was nearest to; they form a
+         connected region around it */
+      int source = index(pos.getX(), pos.getY());
+      int count = 0;
+      count = clear(count, source);
+
+      for (int i = 0; i < count; i++)
+      {
+         int cell = this.region[i];
+         for (int dir = 0; dir < STEP_X.length; dir++)
+         {
+            int neighbor = neighbor(cell, dir);
+            if (neighbor >= 0 && this.origin[neighbor] == source)
+            {
+               count = clear(count, neighbor);
+            }
+         }
+      }
+
+      refill(count);
+   }
+
+   public void blockerAdded(Point pos)
+   {
+      if (this.stale)
+      {
+         return;
+      }
+
+      int wall = index(pos.getX(), pos.getY());
+      int level = this.distance[wall];
+      if (level == UNREACHABLE)
+      {
+         /* no route reached the cell, so none ran through it */
+         return;
+      }
+
+      /* clear the wall and, level by level, every cell one step further
+         out than a cleared one; the rest keep a shortest path that
+         avoids the wall */
+      int count = 0;
+      count = clear(count, wall);
+
+      int levelEnd = count;
+      for (int i = 0; i < count; i++)
+      {
+         if (i == levelEnd)
+         {
+            level++;
+            levelEnd = count;
+         }
+
+         int cell = this.region[i];
+         for (int dir = 0; dir < STEP_X.length; dir++)
+         {
+            int neighbor = neighbor(cell, dir);
+            if (neighbor >= 0 && this.distance[neighbor] == level + 1)
+            {
+               count = clear(count, neighbor);
+            }
+         }
+      }
+
+      refill(count);
+   }
+
+   public void blockerRemoved(Point pos)
+   {
+      if (this.stale)
+      {
+         return;
+      }
+
+      relaxFromNeighbors(index(pos.getX(), pos.getY()));
+      propagate();
+   }
+
+   public int getDistance(Point pos)
+   {
+      return getDistance(pos.getX(), pos.getY());
+   }
+
+   public int getDistance(int x, int y)
+   {
+      refresh();
+      if (!inBounds(x, y))
+      {
+         return UNREACHABLE;
+      }
+      return this.distance[index(x, y)];
+   }
+
+   /*
+      The source nearest to pos by path, if any can be reached.
+   */
+   public Optional<Entity> getNearestSource(Point pos)
+   {
+      if (getDistance(pos) == UNREACHABLE)
+      {
+         return Optional.empty();
+      }
+
+      int cell = this.origin[index(pos.getX(), pos.getY())];
+      return this.world.getOccupant(this.world.pointAt(cell % this.numCols,
+         cell / this.numCols));
+   }
+
+   /*
+      Returns the free neighbor closest to a source, or pos itself if no
+      free neighbor improves on it.
+   */
+   public Point nextStep(Point pos, CellPredicate free)
+   {
+      int bestX = pos.getX();
+      int bestY = pos.getY();
+      int bestDistance = getDistance(bestX, bestY);
+
+      for (int dir = 0; dir < STEP_X.length; dir++)
+      {
+         int nx = pos.getX() + STEP_X[dir];
+         int ny = pos.getY() + STEP_Y[dir];
+         int neighborDistance = getDistance(nx, ny);
+         if (neighborDistance < bestDistance && free.test(this.world, nx, ny))
+         {
+            bestX = nx;
+            bestY = ny;
+            bestDistance = neighborDistance;
+         }
+      }
+
+      return this.world.pointAt(bestX, bestY);
+   }
+
+   private void refresh()
+   {
+      if (!this.stale)
+      {
+         return;
+      }
+
+      Arrays.fill(this.distance, UNREACHABLE);
+      Arrays.fill(this.origin, -1);
+
+      EntityStore store = this.world.getEntityStore();
+      if (store != null)
+      {
+         /* scan the kind and cell columns rather than the entity set */
+         for (int id = 0; id < store.size(); id++)
+         {
+            if (store.getKind(id) == this.kind)
+            {
+               seed(index(store.getX(id), store.getY(id)));
+            }
+         }
+      }
+      else
+      {
+         for (Entity entity : this.world.getEntities())
+         {
+            if (entity.getKind() == this.kind)
+            {
+               seed(index(entity.position.getX(), entity.position.getY()));
+            }
+         }
+      }
+
+      this.stale = false;
+      propagate();
+   }
+
+   private void seed(int cell)
+   {
+      this.distance[cell] = 0;
+      this.origin[cell] = cell;
+      addSeed(cell);
+   }
+
+   private void addSeed(int cell)
+   {
+      if (this.seedCount == this.seeds.length)
+      {
+         this.seeds = Arrays.copyOf(this.seeds, this.seedCount * 2);
+      }
+      this.seeds[this.seedCount++] =
+         ((long)this.distance[cell] << 32) | cell;
+   }
+
+   private int clear(int count, int cell)
+   {
+      this.distance[cell] = UNREACHABLE;
+      this.origin[cell] = -1;
+      if (count == this.region.length)
+      {
+         this.region = Arrays.copyOf(this.region, count * 2);
+      }
+      this.region[count] = cell;
+      return count + 1;
+   }
+
+   /* refill the cleared region from whatever borders it */
+   private void refill(int count)
+   {
+      for (int i = 0; i < count; i++)
+      {
+         relaxFromNeighbors(this.region[i]);
+      }
+      propagate();
+   }
+
+   private void relaxFromNeighbors(int cell)
+   {
+      if (isWall(cell))
+      {
+         return;
+      }
+
+      for (int dir = 0; dir < STEP_X.length; dir++)
+      {
+         int neighbor = neighbor(cell, dir);
+         if (neighbor >= 0 && this.distance[neighbor] != UNREACHABLE &&
+            this.distance[neighbor] + 1 < this.distance[cell])
+         {
+            this.distance[cell] = this.distance[neighbor] + 1;
+            this.origin[cell] = this.origin[neighbor];
+         }
+      }
+
+      if (this.distance[cell] != UNREACHABLE)
+      {
+         addSeed(cell);
+      }
+   }
+
+   /*
+      Spreads the seeded distances breadth-first.  A cell enters the ring
+      only when its distance drops, and cells leave in order of distance,
+      so none enters twice and the ring never holds more than every cell.
+   */
+   private void propagate()
+   {
+      Arrays.sort(this.seeds, 0, this.seedCount);
+      int nextSeed = 0;
+      this.head = 0;
+      this.tail = 0;
+      int queued = 0;
+
+      while (nextSeed < this.seedCount || queued > 0)
+      {
+         int cell;
+         if (queued > 0 && (nextSeed == this.seedCount ||
+            this.distance[this.queue[this.head]] <=
+               (int)(this.seeds[nextSeed] >>> 32)))
+         {
+            cell = this.queue[this.head];
+            this.head = (this.head + 1) % this.queue.length;
+            queued--;
+         }
+         else
+         {
+            long next = this.seeds[nextSeed++];
+            cell = (int)next;
+            if ((int)(next >>> 32) != this.distance[cell])
+            {
+               continue;
+            }
+         }
+
+         int dist = this.distance[cell];
+         for (int dir = 0; dir < STEP_X.length; dir++)
+         {
+            int neighbor = neighbor(cell, dir);
+            if (neighbor >= 0 && dist + 1 < this.distance[neighbor] &&
+               !isWall(neighbor))
+            {
+               this.distance[neighbor] = dist + 1;
+               this.origin[neighbor] = this.origin[cell];
+               this.queue[this.tail] = neighbor;
+               this.tail = (this.tail + 1) % this.queue.length;
+               queued++;
+            }
+         }
+      }
+
+      this.seedCount = 0;
+   }
+
+   private boolean isWall(int cell)
+   {
+      return this.world.getPathFinder().isStaticallyBlocked(
+         cell % this.numCols, cell / this.numCols);
+   }
+
+   private int neighbor(int cell, int dir)
+   {
+      int x = cell % this.numCols + STEP_X[dir];
+      int y = cell / this.numCols + STEP_Y[dir];
+      return inBounds(x, y) ? index(x, y) : -1;
+   }
+
+   private boolean inBounds(int x, int y)
+   {
+      return x >= 0 && x < this.numCols && y >= 0 && y < this.numRows;
+   }
+
+   private int index(int x, int y)
+   {
+      return y * this.numCols + x;
+   }
+}
@@ -1,10 +1,516 @@
-import java.util.List;
+import processing.core.PImage;
+
 import java.util.Optional;
 import java.util.Random;
 
-import processing.core.PImage;
+public class Entity {
+    private EntityKind kind;
+    private String id;
+    public Point position;
+
+    private SpriteSequence images;
+    private int imageIndex;
+    private int resourceLimit;
+    private int resourceCount;
+    private int actionPeriod;
+    private int animationPeriod;
+
+    // while attached to an EntityStore, kind, image index, resource
+    // count and periods live in the store's columns instead of the fields
+    // above; the store also mirrors position
+    private EntityStore store;
+    private int storeId;
+
+    // an entity's activity is the same every time it comes round, so one
+    // Action is built on first use and rescheduled for its whole life
+    private Action activityAction;
+
+    // the open cell a vein's next activity will fill, looked up ahead of
+    // time by prepareVeinActivity; null when the vein should look itself
+    private Optional<Point> preparedOpenCell;
+
+    private static final Random rand = new Random();
+    private static final String BLOB_ID_SUFFIX = " -- blob";
+    private static final int BLOB_PERIOD_SCALE = 4;
+    private static final int BLOB_ANIMATION_MIN = 50;
+    private static final int BLOB_ANIMATION_MAX = 150;
+    private static final String ORE_ID_PREFIX = "ore -- ";
+    private static final int ORE_CORRUPT_MIN = 20000;
+    private static final int ORE_CORRUPT_MAX = 30000;
+    private static final int QUAKE_ANIMATION_REPEAT_COUNT = 10;
+
+    public static final String BLOB_KEY = "blob";
+    public static final String QUAKE_KEY = "quake";
+    public static final String MINER_KEY = "miner";
+    public static final String OBSTACLE_KEY = "obstacle";
+    public static final String ORE_KEY = "ore";
+    public static final String SMITH_KEY = "blacksmith";
+    public static final String VEIN_KEY = "vein";
+
+    private static final CellPredicate MINER_PASSABLE = (world, x, y) ->
+            world.withinBounds(x, y) && !world.isOccupied(x, y);
+    private static final CellPredicate BLOB_PASSABLE = (world, x, y) ->
+            world.withinBounds(x, y) && (!world.isOccupied(x, y) ||
+                    world.getOccupancyCell(x, y).getKind() == EntityKind.ORE);
+
+
+
+    public Entity(EntityKind kind, String id, Point position,
+                   SpriteSequence images, int resourceLimit, int resourceCount,
+                   int actionPeriod, int animationPeriod)
+    {
+        this.kind = kind;
+        this.id = id;
+        this.position = position;
+        this.images = images;
+        this.imageIndex = 0;
+        this.resourceLimit = resourceLimit;
+        this.resourceCount = resourceCount;
+        this.actionPeriod = actionPeriod;
+        this.animationPeriod = animationPeriod;
+    }
+
+    public static void setRandomSeed(long seed) {
+        rand.setSeed(seed);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int getResourceLimit() {
+        return resourceLimit;
+    }
+
+    public int getActionPeriod() {
+        return store != null ? store.getActionPeriod(storeId) : actionPeriod;
+    }
+
+    public EntityKind getKind() {
+        return store != null ? store.getKind(storeId) : kind;
+    }
+
+    public void setKind(EntityKind kind) {
+        if (store != null) {
+            store.setKind(storeId, kind);
+        } else {
+            this.kind = kind;
+        }
+    }
+
+    public SpriteSequence getImages() {
+        return images;
+    }
+
+    public int getImageIndex() {
+        return store != null ? store.getImageIndex(storeId) : imageIndex;
+    }
+
+    public void setImageIndex(int imageIndex) {
+        if (store != null) {
+            store.setImageIndex(storeId, imageIndex);
+        } else {
+            this.imageIndex = imageIndex;
+        }
+    }
+
+    public int getResourceCount() {
+        return store != null ? store.getResourceCount(storeId) : resourceCount;
+    }
+
+    private void setResourceCount(int resourceCount) {
+        if (store != null) {
+            store.setResourceCount(storeId, resourceCount);
+        } else {
+            this.resourceCount = resourceCount;
+        }
+    }
+
+    public int getStoreId() {
+        return storeId;
+    }
+
+    public void setStoreId(int storeId) {
+        this.storeId = storeId;
+    }
+
+    public void attach(EntityStore store) {
+        this.storeId = store.add(this, this.kind, this.position.getX(),
+                this.position.getY(), this.imageIndex, this.resourceCount,
+                this.actionPeriod, this.animationPeriod);
+        this.store = store;
+    }
+
+    public void detach() {
+        if (store == null) {
+            return;
+        }
+
+        this.kind = store.getKind(storeId);
+        this.imageIndex = store.getImageIndex(storeId);
+        this.resourceCount = store.getResourceCount(storeId);
+
+        Entity moved = store.remove(storeId);
+        if (moved != null) {
+            moved.setStoreId(storeId);
+        }
+        this.store = null;
+    }
+
+
+    public static PImage getCurrentImage(Object entity)
+    {
+        if (entity instanceof Background)
+        {
+            return ((Background)entity).getImages()
+                    .get(((Background)entity).getImageIndex());
+        }
+        else if (entity instanceof Entity)
+        {
+            return ((Entity)entity).getImages()
+                    .get(((Entity)entity).getImageIndex());
+        }
+        else
+        {
+            throw new UnsupportedOperationException(
+                    String.format("getCurrentImage not supported for %s",
+                            entity));
+        }
+    }
+
+
+
+    public Action createActivityAction(WorldModel world,
+                                       ImageStore imageStore)
+    {
+        if (this.activityAction == null)
+        {
+            this.activityAction = new Action(ActionKind.ACTIVITY, this, world,
+                    imageStore, 0);
+        }
+        return this.activityAction;
+    }
+
+    public Action createAnimationAction(WorldModel world, int repeatCount)
+    {
+        return new Action(ActionKind.ANIMATION, this, world, null, repeatCount);
+    }
+
+    public int getAnimationPeriod()
+    {
+        switch (this.getKind())
+        {
+            case MINER_FULL:
+            case MINER_NOT_FULL:
+            case ORE_BLOB:
+            case QUAKE:
+                return store != null ? store.getAnimationPeriod(storeId)
+                        : this.animationPeriod;
+            default:
+                throw new UnsupportedOperationException(
+                        String.format("getAnimationPeriod not supported for %s",
+                                this.getKind()));
+        }
+    }
+
+    public Point nextPositionOreBlob(WorldModel world,
+                                     Point destPos)
+    {
+        // blobs share the world's distance layer toward veins
+        return world.nextStepToward(EntityKind.VEIN, this.position, destPos,
+                BLOB_PASSABLE);
+    }
+
+    public Point nextPositionMiner(WorldModel world,
+                                   Point destPos)
+    {
+        // ore is scattered and short-lived, so plan a private path to it
+        return world.getPathFinder().nextStepAStar(this, destPos,
+                MINER_PASSABLE);
+    }
+
+    public Point nextPositionMinerFull(WorldModel world,
+                                       Point destPos)
+    {
+        // full miners share the world's distance layer toward blacksmiths
+        return world.nextStepToward(EntityKind.BLACKSMITH, this.position, destPos,
+                MINER_PASSABLE);
+    }
+
+    public void nextImage()
+    {
+        this.setImageIndex((this.getImageIndex() + 1) % this.images.size());
+    }
+
+    public boolean moveToOreBlob(WorldModel world,
+                                 Entity target, EventScheduler scheduler)
+    {
+        if (this.position.adjacent(target.position))
+        {
+            world.removeEntity(target);
+            scheduler.unscheduleAllEvents(target);
+            return true;
+        }
+        else
+        {
+            Point nextPos = this.nextPositionOreBlob(world, target.position);
+
+            if (!this.position.equals(nextPos))
+            {
+                Optional<Entity> occupant = world.getOccupant(nextPos);
+                if (occupant.isPresent())
+                {
+                    scheduler.unscheduleAllEvents(occupant.get());
+                }
+
+                world.moveEntity(this, nextPos);
+            }
+            return false;
+        }
+    }
+
+    public boolean moveToFull(WorldModel world,
+                              Entity target, EventScheduler scheduler)
+    {
+        if (this.position.adjacent(target.position))
+        {
+            return true;
+        }
+        else
+        {
+            Point nextPos = this.nextPositionMinerFull(world, target.position);
+
+            if (!this.position.equals(nextPos))
+            {
+                Optional<Entity> occupant = world.getOccupant(nextPos);
+                if (occupant.isPresent())
+                {
+                    scheduler.unscheduleAllEvents(occupant.get());
+                }
+
+                world.moveEntity(this, nextPos);
+            }
+            return false;
+        }
+    }
+
+    public boolean moveToNotFull(WorldModel world,
+                                 Entity target, EventScheduler scheduler)
+    {
+        if (this.position.adjacent(target.position))
+        {
+            this.setResourceCount(this.getResourceCount() + 1);
+            world.entityChanged(this);
+            world.removeEntity(target);
+            scheduler.unscheduleAllEvents(target);
+
+            return true;
+        }
+        else
+        {
+            Point nextPos = this.nextPositionMiner(world, target.position);
+
+            if (!this.position.equals(nextPos))
+            {
+                Optional<Entity> occupant = world.getOccupant(nextPos);
+                if (occupant.isPresent())
+                {
+                    scheduler.unscheduleAllEvents(occupant.get());
+                }
+
+                world.moveEntity(this, nextPos);
+            }
+            return false;
+        }
+    }
+
+    /*
+       Miners switch between full and not-full in place, keeping their
+       identity, their cell and their pending animation event.
+    */
+    public void transformFull(WorldModel world)
+    {
+        this.setResourceCount(0);
+        world.changeKind(this, EntityKind.MINER_NOT_FULL);
+    }
+
+    public boolean transformNotFull(WorldModel world)
+    {
+        if (this.getResourceCount() >= this.resourceLimit)
+        {
+            this.setResourceCount(this.resourceLimit);
+            world.changeKind(this, EntityKind.MINER_FULL);
+
+            return true;
+        }
+
+        return false;
+    }
+
+    public void scheduleActions(EventScheduler scheduler,
+                                WorldModel world, ImageStore imageStore)
+    {
+        switch (this.getKind())
+        {
+            case MINER_FULL:
+                scheduler.scheduleEvent(this,
+                        this.createActivityAction(world, imageStore),
+                        this.getActionPeriod());
+                scheduler.scheduleAnimation(this, world, 0);
+                break;
+
+            case MINER_NOT_FULL:
+                scheduler.scheduleEvent(this,
+                        this.createActivityAction(world, imageStore),
+                        this.getActionPeriod());
+                scheduler.scheduleAnimation(this, world, 0);
+                break;
+
+            case ORE:
+                scheduler.scheduleEvent(this,
+                        this.createActivityAction(world, imageStore),
+                        this.getActionPeriod());
+                break;
+
+            case ORE_BLOB:
+                scheduler.scheduleEvent(this,
+                        this.createActivityAction(world, imageStore),
+                        this.getActionPeriod());
+                scheduler.scheduleAnimation(this, world, 0);
+                break;
+
+            case QUAKE:
+                scheduler.scheduleEvent(this,
+                        this.createActivityAction(world, imageStore),
+                        this.getActionPeriod());
+                scheduler.scheduleAnimation(this, world,
+                        QUAKE_ANIMATION_REPEAT_COUNT);
+                break;
+
+            case VEIN:
+                scheduler.scheduleEvent(this,
+                        this.createActivityAction(world, imageStore),
+                        this.getActionPeriod());
+                break;
+
+            default:
+        }
+    }
+
+    public void prepareVeinActivity(WorldModel world)
+    {
+        this.preparedOpenCell = this.position.findOpenAround(world);
+    }
+
+    public void discardPreparation()
+    {
+        this.preparedOpenCell = null;
+    }
+
+    public void executeVeinActivity(WorldModel world,
+                                    ImageStore imageStore, EventScheduler scheduler)
+    {
+        Optional<Point> openPt = this.preparedOpenCell != null ?
+                this.preparedOpenCell : this.position.findOpenAround(world);
+        this.preparedOpenCell = null;
+
+        if (openPt.isPresent())
+        {
+            Entity ore = openPt.get().createOre(ORE_ID_PREFIX + this.id,
+                    ORE_CORRUPT_MIN +
+                            rand.nextInt(ORE_CORRUPT_MAX - ORE_CORRUPT_MIN),
+                    Functions.getImageList(imageStore, ORE_KEY));
+            world.addEntity(ore);
+            ore.scheduleActions(scheduler, world, imageStore);
+        }
+
+        scheduler.scheduleEvent(this,
+                this.createActivityAction(world, imageStore),
+                this.getActionPeriod());
+    }
+
+    public void executeQuakeActivity(WorldModel world,
+                                     ImageStore imageStore, EventScheduler scheduler)
+    {
+        scheduler.unscheduleAllEvents(this);
+        world.removeEntity(this);
+    }
+
+    public void executeOreBlobActivity(WorldModel world,
+                                       ImageStore imageStore, EventScheduler scheduler)
+    {
+        Optional<Entity> blobTarget = world.findNearestReachable(this.position,
+                EntityKind.VEIN);
+        long nextPeriod = this.getActionPeriod();
+
+        if (blobTarget.isPresent())
+        {
+            Point tgtPos = blobTarget.get().position;
+
+            if (this.moveToOreBlob(world, blobTarget.get(), scheduler))
+            {
+                Entity quake = tgtPos.createQuake(
+                        Functions.getImageList(imageStore, QUAKE_KEY));
+
+                world.addEntity(quake);
+                nextPeriod += this.getActionPeriod();
+                quake.scheduleActions(scheduler, world, imageStore);
+            }
+        }
+
+        scheduler.scheduleEvent(this,
+                this.createActivityAction(world, imageStore),
+                nextPeriod);
+    }
+
+    public void executeOreActivity(WorldModel world,
+                                   ImageStore imageStore, EventScheduler scheduler)
+    {
+        Point pos = this.position;  // store current position before removing
+
+        world.removeEntity(this);
+        scheduler.unscheduleAllEvents(this);
+
+        Entity blob = pos.createOreBlob(this.id + BLOB_ID_SUFFIX,
+                this.getActionPeriod() / BLOB_PERIOD_SCALE,
+                BLOB_ANIMATION_MIN +
+                        rand.nextInt(BLOB_ANIMATION_MAX - BLOB_ANIMATION_MIN),
+                Functions.getImageList(imageStore, BLOB_KEY));
+
+        world.addEntity(blob);
+        blob.scheduleActions(scheduler, world, imageStore);
+    }
+
+    public void executeMinerNotFullActivity(WorldModel world, ImageStore imageStore, EventScheduler scheduler)
+    {
+        Optional<Entity> notFullTarget = this.position.findNearest(world,
+                EntityKind.ORE);
+
+        if (notFullTarget.isPresent() &&
+                this.moveToNotFull(world, notFullTarget.get(), scheduler))
+        {
+            this.transformNotFull(world);
+        }
+
+        scheduler.scheduleEvent(this,
+                this.createActivityAction(world, imageStore),
+                this.getActionPeriod());
+    }
+
+    public void executeMinerFullActivity(WorldModel world,
+                                         ImageStore imageStore, EventScheduler scheduler)
+    {
+        Optional<Entity> fullTarget = world.findNearestReachable(this.position,
+                EntityKind.BLACKSMITH);
 
-public interface Entity
-{
+        if (fullTarget.isPresent() &&
+                this.moveToFull(world, fullTarget.get(), scheduler))
+        {
+            this.transformFull(world);
+        }
 
+        scheduler.scheduleEvent(this,
+                this.createActivityAction(world, imageStore),
+                this.getActionPeriod());
+    }
 }
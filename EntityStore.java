@@ -0,0 +1,185 @@
+import java.util.Arrays;
+
+/*
+   Struct-of-arrays storage for the entities of a world.  Each entity gets
+   a dense id, and its kind, cell, image index, resource count and
+   periods live in parallel primitive columns under that id, so
+   whole-world sweeps walk a few int arrays instead of chasing entity and
+   Point references.  Entity counts and distance layer rebuilds read the
+   kind and cell columns this way.
+
+   While an entity is in the store, its state is read from and written
+   to the columns; the entity object is only a view.  The cell columns
+   mirror the entity's position, which WorldModel.moveEntity keeps in
+   step.  Ids stay dense: removal moves the last entity into the freed
+   slot.
+*/
+final class EntityStore
+{
+   private static final int INITIAL_CAPACITY = 256;
+   private static final EntityKind[] KINDS = EntityKind.values();
+
+   private int size;
+   private Entity[] entities;
+   private byte[] kinds;
+   private int[] xs;
+   private int[] ys;
+   private int[] imageIndices;
+   private int[] resourceCounts;
+   private int[] actionPeriods;
+   private int[] animationPeriods;
+
+   public EntityStore()
+   {
+      this.entities = new Entity[INITIAL_CAPACITY];
+      this.kinds = new byte[INITIAL_CAPACITY];
+      this.xs = new int[INITIAL_CAPACITY];
+      this.ys = new int[INITIAL_CAPACITY];
+      this.imageIndices = new int[INITIAL_CAPACITY];
+      this.resourceCounts = new int[INITIAL_CAPACITY];
+      this.actionPeriods = new int[INITIAL_CAPACITY];
+      this.animationPeriods = new int[INITIAL_CAPACITY];
+   }
+
+   public int size()
+   {
+      return size;
+   }
+
+   public Entity getEntity(int id)
+   {
+      return this.entities[id];
+   }
+
+   public EntityKind getKind(int id)
+   {
+      return KINDS[this.kinds[id]];
+   }
+
+   public void setKind(int id, EntityKind kind)
+   {
+      this.kinds[id] = (byte)kind.ordinal();
+   }
+
+   public int getX(int id)
+   {
+      return this.xs[id];
+   }
+
+   public int getY(int id)
+   {
+      return this.ys[id];
+   }
+
+   public void setPosition(int id, int x, int y)
+   {
+      this.xs[id] = x;
+      this.ys[id] = y;
+   }
+
+   public int getImageIndex(int id)
+   {
+      return this.imageIndices[id];
+   }
+
+   public void setImageIndex(int id, int imageIndex)
+   {
+      this.imageIndices[id] = imageIndex;
+   }
+
+   public int getResourceCount(int id)
+   {
+      return this.resourceCounts[id];
+   }
+
+   public void setResourceCount(int id, int resourceCount)
+   {
+      this.resourceCounts[id] = resourceCount;
+   }
+
+   public int getActionPeriod(int id)
+   {
+      return this.actionPeriods[id];
+   }
+
+   public int getAnimationPeriod(int id)
+   {
+      return this.animationPeriods[id];
+   }
+
+   /*
+      Counts the stored entities of each kind into counts, which is
+      indexed by kind ordinal.
+   */
+   public void countKinds(int[] counts)
+   {
+      for (int id = 0; id < this.size; id++)
+      {
+         counts[this.kinds[id]]++;
+      }
+   }
+
+   /*
+      Adds the entity with the given state and returns its id.
+   */
+   public int add(Entity entity, EntityKind kind, int x, int y,
+      int imageIndex, int resourceCount, int actionPeriod,
+      int animationPeriod)
+   {
+      if (this.size == this.entities.length)
+      {
+         grow();
+      }
+
+      int id = this.size++;
+      this.entities[id] = entity;
+      this.kinds[id] = (byte)kind.ordinal();
+      this.xs[id] = x;
+      this.ys[id] = y;
+      this.imageIndices[id] = imageIndex;
+      this.resourceCounts[id] = resourceCount;
+      this.actionPeriods[id] = actionPeriod;
+      this.animationPeriods[id] = animationPeriod;
+      return id;
+   }
+
+   /*
+      Removes the given id.  The last entity takes its place; that entity
+      is returned so its id can be updated, or null if nothing moved.
+   */
+   public Entity remove(int id)
+   {
+      int last = --this.size;
+      Entity moved = null;
+
+      if (id != last)
+      {
+         moved = this.entities[last];
+         this.entities[id] = moved;
+         this.kinds[id] = this.kinds[last];
+         this.xs[id] = this.xs[last];
+         this.ys[id] = this.ys[last];
+         this.imageIndices[id] = this.imageIndices[last];
+         this.resourceCounts[id] = this.resourceCounts[last];
+         this.actionPeriods[id] = this.actionPeriods[last];
+         this.animationPeriods[id] = this.animationPeriods[last];
+      }
+
+      this.entities[last] = null;
+      return moved;
+   }
+
+   private void grow()
+   {
+      int capacity = this.entities.length * 2;
+      this.entities = Arrays.copyOf(this.entities, capacity);
+      this.kinds = Arrays.copyOf(this.kinds, capacity);
+      this.xs = Arrays.copyOf(this.xs, capacity);
+      this.ys = Arrays.copyOf(this.ys, capacity);
+      this.imageIndices = Arrays.copyOf(this.imageIndices, capacity);
+      this.resourceCounts = Arrays.copyOf(this.resourceCounts, capacity);
+      this.actionPeriods = Arrays.copyOf(this.actionPeriods, capacity);
+      this.animationPeriods = Arrays.copyOf(this.animationPeriods,
+         capacity);
+   }
+}
@@ -2,13 +2,38 @@ final class Event
 {
    private Action action;
    private long time;
+   private long sequence;
    private Entity entity;
+   private int queueIndex;
+   private int queueBucket;
+
+   /* neighbors in the scheduler's list of the entity's pending events;
+      while the event sits in the scheduler's pool, next links the pool */
+   private Event prevPending;
+   private Event nextPending;
 
    public Event(Action action, long time, Entity entity)
+   {
+      reset(action, time, entity);
+   }
+
+   /*
+      Refills an event that is in no queue, for reuse by the scheduler.
+   */
+   void reset(Action action, long time, Entity entity)
    {
       this.action = action;
       this.time = time;
+      this.sequence = 0;
       this.entity = entity;
+      this.queueIndex = -1;
+      this.queueBucket = -1;
+      this.prevPending = null;
+      this.nextPending = null;
+   }
+
+   void setTime(long time){
+      this.time = time;
    }
 
    public Action getAction(){
@@ -19,7 +44,55 @@ final class Event
       return time;
    }
 
+   /*
+      Order in which the event was queued among events due at the same
+      time; stamped by the scheduler.
+   */
+   public long getSequence(){
+      return sequence;
+   }
+
+   void setSequence(long sequence){
+      this.sequence = sequence;
+   }
+
    public Entity getEntity(){
       return entity;
    }
+
+   public int getQueueIndex(){
+      return queueIndex;
+   }
+
+   public void setQueueIndex(int queueIndex){
+      this.queueIndex = queueIndex;
+   }
+
+   public int getQueueBucket(){
+      return queueBucket;
+   }
+
+   public void setQueueBucket(int queueBucket){
+      this.queueBucket = queueBucket;
+   }
+
+   public boolean isScheduled(){
+      return queueIndex >= 0;
+   }
+
+   Event getPrevPending(){
+      return prevPending;
+   }
+
+   void setPrevPending(Event prevPending){
+      this.prevPending = prevPending;
+   }
+
+   Event getNextPending(){
+      return nextPending;
+   }
+
+   void setNextPending(Event nextPending){
+      this.nextPending = nextPending;
+   }
 }
@@ -1,10 +1,35 @@
 import java.util.Comparator;
 
+/*
+   Orders events by due time and, among events due at the same
+   millisecond, by the sequence number the scheduler stamped on them when
+   they were queued, so ties run first in, first out and every run of a
+   world executes its events in the same order.
+*/
 final class EventComparator
    implements Comparator<Event>
 {
    public int compare(Event lft, Event rht)
    {
-      return (int)(lft.getTime() - rht.getTime());
+      return compare(lft.getTime(), lft.getSequence(), rht.getTime(),
+         rht.getSequence());
+   }
+
+   /*
+      The same ordering on bare fields; comparing the longs directly never
+      truncates a difference, however far apart the times are.
+   */
+   public static int compare(long lftTime, long lftSequence, long rhtTime,
+      long rhtSequence)
+   {
+      if (lftTime != rhtTime)
+      {
+         return lftTime < rhtTime ? -1 : 1;
+      }
+      if (lftSequence != rhtSequence)
+      {
+         return lftSequence < rhtSequence ? -1 : 1;
+      }
+      return 0;
    }
 }
@@ -0,0 +1,38 @@
+/*
+   Storage for pending events.  EventScheduler drains it through pollDue,
+   so implementations only need to hand back events whose time has passed;
+   they are free to choose how precisely those are ordered.
+*/
+interface EventQueue
+{
+   void add(Event event);
+
+   boolean remove(Event event);
+
+   /*
+      Removes and returns an event due before the given time, or null if
+      none is due.  Callers pass non-decreasing times.
+   */
+   Event pollDue(long time);
+
+   /*
+      Earliest time that, passed to pollDue, releases at least one event;
+      Long.MAX_VALUE when empty.
+   */
+   long nextDueTime();
+
+   /*
+      Time of the earliest event pollDue would release for the given
+      time; Long.MAX_VALUE when none is due.
+   */
+   long oldestDueTime(long time);
+
+   /*
+      Number of events pollDue would release for the given time.
+   */
+   int countDue(long time);
+
+   boolean isEmpty();
+
+   int size();
+}
@@ -1,66 +1,546 @@
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
+/*
+   Events are recycled rather than left to the collector.  An action that
+   reschedules itself while it runs, as every periodic activity does,
+   re-arms the very Event that ran it, and other events go back to a pool
+   once they have run or been unscheduled, so a running world allocates no
+   scheduler objects.  Each entity's pending events are linked through the
+   events themselves.  Since a pooled Event is soon reused for something
+   else, scheduling hands out no handle to it; events leave the queue by
+   running or through unscheduleAllEvents.
+
+   With a pool set, activities whose reach is a few cells around their
+   entity are run in batches: a run of them due one after another, no two
+   touching the same cells, has its reads prepared side by side on the
+   pool and is then run in queue order.  The first event that reaches
+   further, or overlaps the batch, ends it and runs serially after it, so
+   a parallel tick does exactly what a serial one does.
+*/
 final class EventScheduler
 {
-   private PriorityQueue<Event> eventQueue;
-   private Map<Entity, List<Event>> pendingEvents;
+   private static final int BUDGET_CHECK_MASK = 63;
+
+   /* batches smaller than this are prepared on the calling thread */
+   private static final int PARALLEL_THRESHOLD = 64;
+   private static final int MAX_BATCH = 256;
+
+   private EventQueue eventQueue;
+   private Animator animator;
+   private Map<Entity, Event> pendingEvents;
    private double timeScale;
+   private Clock clock;
+   private Event freeEvents;
+   private long nextSequence;
+   private ForkJoinPool pool;
+
+   /* the local activities being batched, in queue order, and the square
+      of cells each one claims */
+   private final Event[] batch = new Event[MAX_BATCH];
+   private final int[] batchX = new int[MAX_BATCH];
+   private final int[] batchY = new int[MAX_BATCH];
+   private final int[] batchReach = new int[MAX_BATCH];
+   private int batchSize;
+
+   /* per-tick limits, zero for none, and what to do when they bite */
+   private int tickEventBudget;
+   private long tickNanosBudget;
+   private BacklogPolicy backlogPolicy;
+
+   /* backlog as of the end of the last tick */
+   private boolean behind;
+   private int backlogDepth;
+   private long lag;
+   private long maxLag;
+   private long overrunTicks;
+
+   /* the event being run serially, and what its action did to it */
+   private Event executing;
+   private boolean rearmed;
+   private boolean unscheduled;
+
+   /* entities whose pending events changed since the journal was last
+      drained; null unless enableJournal has been called */
+   private Set<Entity> journal;
 
    public EventScheduler(double timeScale)
    {
-      this.eventQueue = new PriorityQueue<>(new EventComparator());
+      this(timeScale, new HeapEventQueue(new EventComparator()));
+   }
+
+   public EventScheduler(double timeScale, EventQueue eventQueue)
+   {
+      this(timeScale, eventQueue, Clock.SYSTEM);
+   }
+
+   public EventScheduler(double timeScale, EventQueue eventQueue,
+      Clock clock)
+   {
+      this.eventQueue = eventQueue;
+      this.animator = new Animator();
+      this.backlogPolicy = BacklogPolicy.CATCH_UP;
       this.pendingEvents = new HashMap<>();
       this.timeScale = timeScale;
+      this.clock = clock;
+   }
+
+   public Clock getClock()
+   {
+      return clock;
+   }
+
+   /*
+      Starts recording which entities' pending events change, so that a
+      checkpoint only has to save those.
+   */
+   public void enableJournal()
+   {
+      if (this.journal == null)
+      {
+         this.journal = new LinkedHashSet<>();
+      }
+   }
+
+   /*
+      Returns the entities whose events changed, in the order they first
+      did, and empties the journal.  Some may since have been removed.
+   */
+   public Set<Entity> drainJournal()
+   {
+      Set<Entity> drained = this.journal;
+      this.journal = new LinkedHashSet<>();
+      return drained;
+   }
+
+   public void clearJournal()
+   {
+      this.journal.clear();
+   }
+
+   private void journal(Entity entity)
+   {
+      if (this.journal != null)
+      {
+         this.journal.add(entity);
+      }
+   }
+
+   /*
+      Sweeps large animation groups and prepares batches of local
+      activities on the given pool; null restores serial execution.
+   */
+   public void setParallelPool(ForkJoinPool pool)
+   {
+      this.pool = pool;
+      this.animator.setParallelPool(pool);
+   }
+
+   /*
+      Caps how much one updateOnTime call may do, by events run and by
+      elapsed milliseconds; zero lifts a cap.  Due events left over run
+      on the next call, ahead of anything that falls due later.
+   */
+   public void setTickBudget(int maxEvents, long maxMillis)
+   {
+      this.tickEventBudget = maxEvents;
+      this.tickNanosBudget = maxMillis * 1000000L;
+   }
+
+   public void setBacklogPolicy(BacklogPolicy backlogPolicy)
+   {
+      this.backlogPolicy = backlogPolicy;
+   }
+
+   /*
+      Due events the last tick had to leave for later.
+   */
+   public int getBacklogDepth()
+   {
+      return backlogDepth;
+   }
+
+   /*
+      How long the oldest due event had been waiting when the last tick
+      began, and the most it has ever waited.
+   */
+   public long getLag()
+   {
+      return lag;
+   }
+
+   public long getMaxLag()
+   {
+      return maxLag;
+   }
+
+   /*
+      Ticks that ran out of budget with events still due.
+   */
+   public long getOverrunTicks()
+   {
+      return overrunTicks;
+   }
+
+   public boolean isEmpty()
+   {
+      return this.eventQueue.isEmpty() && this.animator.isEmpty();
+   }
+
+   /*
+      Number of queued events; animating entities are counted by
+      getAnimatingCount.
+   */
+   public int size()
+   {
+      return this.eventQueue.size();
+   }
+
+   public int getAnimatingCount()
+   {
+      return this.animator.size();
+   }
+
+   /*
+      Earliest time at which updateOnTime will have something to run.
+   */
+   public long nextDueTime()
+   {
+      return Math.min(this.eventQueue.nextDueTime(),
+         this.animator.nextDueTime());
    }
 
    public void scheduleEvent(Entity entity, Action action, long afterPeriod)
    {
-      long time = System.currentTimeMillis() +
+      long time = this.clock.currentTimeMillis() +
          (long)(afterPeriod * this.timeScale);
-      Event event = new Event(action, time, entity);
 
+      Event event = this.executing;
+      if (event != null && !this.rearmed && !this.unscheduled &&
+         event.getEntity() == entity && event.getAction() == action)
+      {
+         /* the running action rescheduling itself: the event is still on
+            its entity's pending list and only needs to go back in the
+            queue */
+         this.rearmed = true;
+         journal(entity);
+         event.setTime(time);
+         event.setSequence(this.nextSequence++);
+         this.eventQueue.add(event);
+         return;
+      }
+
+      enqueue(obtainEvent(action, time, entity));
+   }
+
+   /*
+      Schedules at an absolute time, with no time scaling; used to restore
+      events saved from another run.
+   */
+   public void scheduleEventAt(Entity entity, Action action, long time)
+   {
+      enqueue(obtainEvent(action, time, entity));
+   }
+
+   /*
+      Animates an entity every animation period through the batched
+      Animator rather than with ANIMATION events.  A repeat count of zero
+      animates until the entity is unscheduled.
+   */
+   public void scheduleAnimation(Entity entity, WorldModel world,
+      int repeatCount)
+   {
+      journal(entity);
+      this.animator.add(entity, world,
+         (int)(entity.getAnimationPeriod() * this.timeScale), repeatCount,
+         this.clock.currentTimeMillis());
+   }
+
+   /*
+      An entity's animation described as the ANIMATION event that would
+      have been pending for it, for saving; null if it is not animating.
+   */
+   public Event getPendingAnimation(Entity entity, WorldModel world)
+   {
+      if (!this.animator.contains(entity))
+      {
+         return null;
+      }
+      return new Event(entity.createAnimationAction(world,
+         this.animator.getRemaining(entity)),
+         this.animator.getNextTime(entity), entity);
+   }
+
+   public Set<Event> getPendingEvents(Entity entity)
+   {
+      Set<Event> pending = new HashSet<>();
+      for (Event event = this.pendingEvents.get(entity); event != null;
+         event = event.getNextPending())
+      {
+         if (event != this.executing || this.rearmed)
+         {
+            pending.add(event);
+         }
+      }
+      return Collections.unmodifiableSet(pending);
+   }
+
+   private Event obtainEvent(Action action, long time, Entity entity)
+   {
+      Event event = this.freeEvents;
+      if (event == null)
+      {
+         return new Event(action, time, entity);
+      }
+
+      this.freeEvents = event.getNextPending();
+      event.reset(action, time, entity);
+      return event;
+   }
+
+   private void releaseEvent(Event event)
+   {
+      event.reset(null, 0, null);
+      event.setNextPending(this.freeEvents);
+      this.freeEvents = event;
+   }
+
+   private void enqueue(Event event)
+   {
+      Entity entity = event.getEntity();
+      journal(entity);
+
+      event.setSequence(this.nextSequence++);
       this.eventQueue.add(event);
 
-      // update list of pending events for the given entity
-      List<Event> pending = this.pendingEvents.getOrDefault(entity,
-         new LinkedList<>());
-      pending.add(event);
-      this.pendingEvents.put(entity, pending);
+      // link the event at the head of the entity's pending list
+      Event head = this.pendingEvents.put(entity, event);
+      event.setNextPending(head);
+      if (head != null)
+      {
+         head.setPrevPending(event);
+      }
    }
 
    public void unscheduleAllEvents(Entity entity)
    {
-      List<Event> pending = this.pendingEvents.remove(entity);
+      Event event = this.pendingEvents.remove(entity);
+      this.animator.remove(entity);
+      journal(entity);
 
-      if (pending != null)
+      while (event != null)
       {
-         for (Event event : pending)
+         Event next = event.getNextPending();
+         this.eventQueue.remove(event);
+         if (event == this.executing)
+         {
+            /* released once its action returns */
+            event.setPrevPending(null);
+            event.setNextPending(null);
+            this.rearmed = false;
+            this.unscheduled = true;
+         }
+         else
          {
-            this.eventQueue.remove(event);
+            releaseEvent(event);
          }
+         event = next;
       }
    }
 
-   public void updateOnTime(long time)
+   /*
+      Runs one event taken off the queue.  The event stays on its entity's
+      pending list while it runs, so that re-arming it touches nothing
+      but the queue.
+   */
+   private void execute(Event event)
    {
-      while (!this.eventQueue.isEmpty() &&
-         this.eventQueue.peek().getTime() < time)
+      this.executing = event;
+      this.rearmed = false;
+      this.unscheduled = false;
+
+      event.getAction().executeAction(this);
+
+      this.executing = null;
+      if (!this.rearmed)
       {
-         Event next = this.eventQueue.poll();
+         if (!this.unscheduled)
+         {
+            removePendingEvent(event);
+         }
+         releaseEvent(event);
+      }
+   }
 
-         removePendingEvent(next);
+   /*
+      Runs the events due before the given time, as many as the tick
+      budget allows, and returns how many ran.  Animation groups that are
+      due are swept first; their frames are not counted as events.
+   */
+   public int updateOnTime(long time)
+   {
+      long start = System.nanoTime();
+      long oldest = this.eventQueue.oldestDueTime(time);
+      this.lag = oldest == Long.MAX_VALUE ? 0 : time - oldest;
+      this.maxLag = Math.max(this.maxLag, this.lag);
+
+      this.animator.update(time, this.clock.currentTimeMillis(),
+         this.behind && this.backlogPolicy == BacklogPolicy.SKIP_ANIMATION);
 
-         next.getAction().executeAction(this);
+      int executed = 0;
+      Event next;
+      while (!isOverBudget(executed, start) &&
+         (next = this.eventQueue.pollDue(time)) != null)
+      {
+         if (this.pool != null && next.getAction().getReach() >= 0)
+         {
+            executed += executeBatch(next, time, executed, start);
+         }
+         else
+         {
+            execute(next);
+            executed++;
+         }
+      }
+
+      this.behind = this.eventQueue.nextDueTime() <= time;
+      this.backlogDepth = this.behind ? this.eventQueue.countDue(time) : 0;
+      if (this.behind)
+      {
+         this.overrunTicks++;
       }
+      return executed;
+   }
+
+   /*
+      Gathers the local activities due after first, up to the first event
+      that reaches further or overlaps one already gathered; that event
+      goes back in the queue to run after the batch.  Returns how many of
+      the batch ran.
+   */
+   private int executeBatch(Event first, long time, int executed,
+      long start)
+   {
+      this.batchSize = 0;
+      addToBatch(first);
+
+      Event next;
+      while (this.batchSize < MAX_BATCH &&
+         !isOverBudget(executed + this.batchSize, start) &&
+         (next = this.eventQueue.pollDue(time)) != null)
+      {
+         if (next.getAction().getReach() < 0 || overlapsBatch(next))
+         {
+            this.eventQueue.add(next);
+            break;
+         }
+         addToBatch(next);
+      }
+
+      int size = this.batchSize;
+      Event[] events = this.batch;
+      if (size >= PARALLEL_THRESHOLD)
+      {
+         this.pool.submit(() -> IntStream.range(0, size).parallel()
+            .forEach(i -> events[i].getAction().prepare())).join();
+      }
+      else
+      {
+         for (int i = 0; i < size; i++)
+         {
+            events[i].getAction().prepare();
+         }
+      }
+
+      /* whatever the batch schedules normally falls due after all of it;
+         should something fall due sooner, the rest of the batch goes
+         back in the queue to run behind it */
+      int ran = 0;
+      while (ran < size && (ran == 0 ||
+         this.eventQueue.oldestDueTime(time) >= events[ran].getTime()))
+      {
+         execute(events[ran]);
+         ran++;
+      }
+      for (int i = ran; i < size; i++)
+      {
+         events[i].getAction().discardPreparation();
+         this.eventQueue.add(events[i]);
+      }
+
+      Arrays.fill(events, 0, size, null);
+      this.batchSize = 0;
+      return ran;
+   }
+
+   private void addToBatch(Event event)
+   {
+      Point pos = event.getEntity().position;
+      this.batch[this.batchSize] = event;
+      this.batchX[this.batchSize] = pos.getX();
+      this.batchY[this.batchSize] = pos.getY();
+      this.batchReach[this.batchSize] = event.getAction().getReach();
+      this.batchSize++;
+   }
+
+   private boolean overlapsBatch(Event event)
+   {
+      Point pos = event.getEntity().position;
+      int reach = event.getAction().getReach();
+      for (int i = 0; i < this.batchSize; i++)
+      {
+         int apart = reach + this.batchReach[i];
+         if (Math.abs(pos.getX() - this.batchX[i]) <= apart &&
+            Math.abs(pos.getY() - this.batchY[i]) <= apart)
+         {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private boolean isOverBudget(int executed, long start)
+   {
+      if (this.tickEventBudget > 0 && executed >= this.tickEventBudget)
+      {
+         return true;
+      }
+
+      /* the clock is only read every so many events */
+      return this.tickNanosBudget > 0 &&
+         (executed & BUDGET_CHECK_MASK) == 0 &&
+         System.nanoTime() - start >= this.tickNanosBudget;
    }
 
    public void removePendingEvent(Event event)
     {
-       List<Event> pending = this.pendingEvents.get(event.getEntity());
+       Event prev = event.getPrevPending();
+       Event next = event.getNextPending();
+       if (prev == null && this.pendingEvents.get(event.getEntity()) != event)
+       {
+          return;
+       }
+       journal(event.getEntity());
 
-       if (pending != null)
+       if (prev != null)
+       {
+          prev.setNextPending(next);
+       }
+       else if (next != null)
        {
-          pending.remove(event);
+          this.pendingEvents.put(event.getEntity(), next);
        }
+       else
+       {
+          this.pendingEvents.remove(event.getEntity());
+       }
+       if (next != null)
+       {
+          next.setPrevPending(prev);
+       }
+
+       event.setPrevPending(null);
+       event.setNextPending(null);
     }
 }
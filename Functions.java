@@ -1,6 +1,3 @@
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
 import java.util.Scanner;
 import processing.core.PImage;
 import processing.core.PApplet;
@@ -13,13 +10,10 @@ final class Functions
    private static final int KEYED_GREEN_IDX = 3;
    private static final int KEYED_BLUE_IDX = 4;
 
-   private static final int PROPERTY_KEY = 0;
-   private static final String BGND_KEY = "background";
-
-
-   public static List<PImage> getImageList(ImageStore imageStore, String key)
+   public static SpriteSequence getImageList(ImageStore imageStore,
+      String key)
    {
-      return imageStore.getImages().getOrDefault(key, imageStore.getDefaultImages());
+      return imageStore.getSprites(key);
    }
 
    public static void loadImages(Scanner in, ImageStore imageStore,
@@ -30,7 +24,7 @@ final class Functions
       {
          try
          {
-            processImageLine(imageStore.getImages(), in.nextLine(), screen);
+            processImageLine(imageStore, in.nextLine(), screen);
          }
          catch (NumberFormatException e)
          {
@@ -41,40 +35,30 @@ final class Functions
       }
    }
 
-   public static void processImageLine(Map<String, List<PImage>> images,
-      String line, PApplet screen)
+   /*
+      Queues the line's image on the store's loader threads; the mask
+      color is worked out here since it needs the screen.
+   */
+   public static void processImageLine(ImageStore imageStore, String line,
+      PApplet screen)
    {
       String[] attrs = line.split("\\s");
       if (attrs.length >= 2)
       {
          String key = attrs[0];
-         PImage img = screen.loadImage(attrs[1]);
-         if (img != null && img.width != -1)
-         {
-            List<PImage> imgs = getImages(images, key);
-            imgs.add(img);
+         boolean keyed = attrs.length >= KEYED_IMAGE_MIN;
+         int maskColor = 0;
 
-            if (attrs.length >= KEYED_IMAGE_MIN)
-            {
-               int r = Integer.parseInt(attrs[KEYED_RED_IDX]);
-               int g = Integer.parseInt(attrs[KEYED_GREEN_IDX]);
-               int b = Integer.parseInt(attrs[KEYED_BLUE_IDX]);
-               setAlpha(img, screen.color(r, g, b), 0);
-            }
+         if (keyed)
+         {
+            int r = Integer.parseInt(attrs[KEYED_RED_IDX]);
+            int g = Integer.parseInt(attrs[KEYED_GREEN_IDX]);
+            int b = Integer.parseInt(attrs[KEYED_BLUE_IDX]);
+            maskColor = screen.color(r, g, b);
          }
-      }
-   }
 
-   public static List<PImage> getImages(Map<String, List<PImage>> images,
-      String key)
-   {
-      List<PImage> imgs = images.get(key);
-      if (imgs == null)
-      {
-         imgs = new LinkedList<>();
-         images.put(key, imgs);
+         imageStore.requestImage(key, attrs[1], screen, keyed, maskColor);
       }
-      return imgs;
    }
 
    /*
@@ -97,59 +81,6 @@ final class Functions
       img.updatePixels();
    }
 
-   public static void load(Scanner in, WorldModel world, ImageStore imageStore)
-   {
-      int lineNumber = 0;
-      while (in.hasNextLine())
-      {
-         try
-         {
-            if (!processLine(in.nextLine(), world, imageStore))
-            {
-               System.err.println(String.format("invalid entry on line %d",
-                  lineNumber));
-            }
-         }
-         catch (NumberFormatException e)
-         {
-            System.err.println(String.format("invalid entry on line %d",
-               lineNumber));
-         }
-         catch (IllegalArgumentException e)
-         {
-            System.err.println(String.format("issue on line %d: %s",
-               lineNumber, e.getMessage()));
-         }
-         lineNumber++;
-      }
-   }
-
-   public static boolean processLine(String line, WorldModel world,
-      ImageStore imageStore)
-   {
-      String[] properties = line.split("\\s");
-      if (properties.length > 0)
-      {
-         switch (properties[PROPERTY_KEY])
-         {
-         case BGND_KEY:
-            return world.parseBackground(properties, imageStore);
-         case Entity.MINER_KEY:
-            return world.parseMiner(properties, imageStore);
-         case Entity.OBSTACLE_KEY:
-            return world.parseObstacle(properties, imageStore);
-         case Entity.ORE_KEY:
-            return world.parseOre(properties, imageStore);
-         case Entity.SMITH_KEY:
-            return world.parseSmith(properties, imageStore);
-         case Entity.VEIN_KEY:
-            return world.parseVein(properties, imageStore);
-         }
-      }
-
-      return false;
-   }
-
    public static int clamp(int value, int low, int high)
    {
       return Math.min(high, Math.max(value, low));
@@ -0,0 +1,317 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+   Runs the simulation without a PApplet on a simulated clock.  Rather than
+   waiting for wall-clock time to pass, the clock jumps straight to the
+   next due event, so hours of world time can be simulated in seconds.
+
+   usage: HeadlessWorld [-hours n] [-seed n] [-wheel] [-parallel] [-soa]
+                        [-cols n] [-rows n] [-chunked] [-restore snapshot]
+                        [-save snapshot] [-checkpoint log] [-resume log]
+                        [-budget events] [-budgetms millis]
+                        [-behind catch-up|skip-animation]
+                        [world file]
+*/
+public final class HeadlessWorld
+{
+   private static final String HOURS_FLAG = "-hours";
+   private static final String SEED_FLAG = "-seed";
+   private static final String TIMING_WHEEL_FLAG = "-wheel";
+   private static final String PARALLEL_FLAG = "-parallel";
+   private static final String ENTITY_STORE_FLAG = "-soa";
+   private static final String COLS_FLAG = "-cols";
+   private static final String ROWS_FLAG = "-rows";
+   private static final String CHUNKED_FLAG = "-chunked";
+   private static final String RESTORE_FLAG = "-restore";
+   private static final String SAVE_FLAG = "-save";
+   private static final String CHECKPOINT_FLAG = "-checkpoint";
+   private static final String RESUME_FLAG = "-resume";
+   private static final String BUDGET_FLAG = "-budget";
+   private static final String BUDGET_MILLIS_FLAG = "-budgetms";
+   private static final String BEHIND_FLAG = "-behind";
+   private static final long CHECKPOINT_INTERVAL = 60L * 1000L;
+   private static final long MILLIS_PER_HOUR = 60L * 60L * 1000L;
+   private static final long START_TIME = 0;
+
+   private final WorldModel world;
+   private final EventScheduler scheduler;
+   private final SimulatedClock clock;
+   private final ImageStore imageStore;
+   private long eventsExecuted;
+
+   public HeadlessWorld(String worldFile, boolean useTimingWheel)
+   {
+      this(worldFile, useTimingWheel, VirtualWorld.WORLD_ROWS,
+         VirtualWorld.WORLD_COLS, false);
+   }
+
+   public HeadlessWorld(String worldFile, boolean useTimingWheel,
+      int numRows, int numCols, boolean chunked)
+   {
+      this(useTimingWheel, numRows, numCols, chunked);
+
+      VirtualWorld.loadWorld(this.world, worldFile, this.imageStore);
+      VirtualWorld.scheduleActions(this.world, this.scheduler,
+         this.imageStore);
+   }
+
+   /*
+      An empty world, to be filled from a snapshot.
+   */
+   public HeadlessWorld(boolean useTimingWheel, int numRows, int numCols,
+      boolean chunked)
+   {
+      this.imageStore = new ImageStore(
+         VirtualWorld.createImageColored(VirtualWorld.TILE_WIDTH,
+         VirtualWorld.TILE_HEIGHT, VirtualWorld.DEFAULT_IMAGE_COLOR));
+
+      this.clock = new SimulatedClock(START_TIME);
+      this.world = new WorldModel(numRows, numCols,
+         VirtualWorld.createDefaultBackground(this.imageStore),
+         chunked || (long)numRows * numCols > WorldModel.DENSE_CELL_LIMIT);
+      this.scheduler = new EventScheduler(1.0, useTimingWheel ?
+         new TimingWheelEventQueue() :
+         new HeapEventQueue(new EventComparator()), this.clock);
+   }
+
+   public void restore(String snapshotFile) throws IOException
+   {
+      WorldSnapshot.read(Paths.get(snapshotFile), this.world, this.scheduler,
+         this.imageStore);
+   }
+
+   public void resume(String logFile) throws IOException
+   {
+      CheckpointLog.restore(Paths.get(logFile), this.world, this.scheduler,
+         this.imageStore);
+   }
+
+   /*
+      Runs for the given time, checkpointing to the log after every
+      interval of simulated time.
+   */
+   public void runFor(long millis, CheckpointLog log, long interval)
+      throws IOException
+   {
+      long remaining = millis;
+      while (remaining > 0)
+      {
+         long step = Math.min(interval, remaining);
+         runFor(step);
+         log.checkpoint(this.world, this.scheduler);
+         remaining -= step;
+      }
+   }
+
+   public void save(String snapshotFile) throws IOException
+   {
+      WorldSnapshot.write(Paths.get(snapshotFile), this.world,
+         this.scheduler);
+   }
+
+   public WorldModel getWorld()
+   {
+      return world;
+   }
+
+   public EventScheduler getScheduler()
+   {
+      return scheduler;
+   }
+
+   public long getEventsExecuted()
+   {
+      return eventsExecuted;
+   }
+
+   /*
+      Advances simulated time by the given amount, executing every event
+      that falls due along the way.
+   */
+   public void runFor(long millis)
+   {
+      long end = this.clock.currentTimeMillis() + millis;
+
+      while (!this.scheduler.isEmpty())
+      {
+         long next = this.scheduler.nextDueTime();
+         if (next > end)
+         {
+            break;
+         }
+
+         this.clock.advanceTo(next);
+         this.eventsExecuted +=
+            this.scheduler.updateOnTime(this.clock.currentTimeMillis());
+      }
+
+      this.clock.advanceTo(end);
+   }
+
+   public Map<EntityKind, Integer> countEntities()
+   {
+      Map<EntityKind, Integer> counts = new EnumMap<>(EntityKind.class);
+      EntityStore store = this.world.getEntityStore();
+      if (store != null)
+      {
+         /* one pass over the kind column */
+         EntityKind[] kinds = EntityKind.values();
+         int[] byKind = new int[kinds.length];
+         store.countKinds(byKind);
+         for (EntityKind kind : kinds)
+         {
+            if (byKind[kind.ordinal()] > 0)
+            {
+               counts.put(kind, byKind[kind.ordinal()]);
+            }
+         }
+         return counts;
+      }
+
+      for (Entity entity : this.world.getEntities())
+      {
+         counts.merge(entity.getKind(), 1, Integer::sum);
+      }
+      return counts;
+   }
+
+   public static void main(String [] args)
+      throws IOException
+   {
+      double hours = 1.0;
+      boolean useTimingWheel = false;
+      boolean useParallelTicks = false;
+      boolean useEntityStore = false;
+      boolean chunked = false;
+      int numCols = VirtualWorld.WORLD_COLS;
+      int numRows = VirtualWorld.WORLD_ROWS;
+      String worldFile = VirtualWorld.LOAD_FILE_NAME;
+      String restoreFile = null;
+      String saveFile = null;
+      String checkpointFile = null;
+      String resumeFile = null;
+      int tickEventBudget = 0;
+      long tickMillisBudget = 0;
+      BacklogPolicy backlogPolicy = BacklogPolicy.CATCH_UP;
+
+      for (int i = 0; i < args.length; i++)
+      {
+         switch (args[i])
+         {
+            case HOURS_FLAG:
+               hours = Double.parseDouble(args[++i]);
+               break;
+            case SEED_FLAG:
+               Entity.setRandomSeed(Long.parseLong(args[++i]));
+               break;
+            case TIMING_WHEEL_FLAG:
+               useTimingWheel = true;
+               break;
+            case PARALLEL_FLAG:
+               useParallelTicks = true;
+               break;
+            case ENTITY_STORE_FLAG:
+               useEntityStore = true;
+               break;
+            case COLS_FLAG:
+               numCols = Integer.parseInt(args[++i]);
+               break;
+            case ROWS_FLAG:
+               numRows = Integer.parseInt(args[++i]);
+               break;
+            case CHUNKED_FLAG:
+               chunked = true;
+               break;
+            case RESTORE_FLAG:
+               restoreFile = args[++i];
+               break;
+            case SAVE_FLAG:
+               saveFile = args[++i];
+               break;
+            case CHECKPOINT_FLAG:
+               checkpointFile = args[++i];
+               break;
+            case RESUME_FLAG:
+               resumeFile = args[++i];
+               break;
+            case BUDGET_FLAG:
+               tickEventBudget = Integer.parseInt(args[++i]);
+               break;
+            case BUDGET_MILLIS_FLAG:
+               tickMillisBudget = Long.parseLong(args[++i]);
+               break;
+            case BEHIND_FLAG:
+               backlogPolicy = VirtualWorld.parseBacklogPolicy(args[++i]);
+               break;
+            default:
+               worldFile = args[i];
+         }
+      }
+
+      HeadlessWorld headless;
+      if (restoreFile != null || resumeFile != null)
+      {
+         headless = new HeadlessWorld(useTimingWheel, numRows, numCols,
+            chunked);
+         if (restoreFile != null)
+         {
+            headless.restore(restoreFile);
+         }
+         else
+         {
+            headless.resume(resumeFile);
+         }
+      }
+      else
+      {
+         headless = new HeadlessWorld(worldFile, useTimingWheel, numRows,
+            numCols, chunked);
+      }
+      if (useParallelTicks)
+      {
+         headless.getScheduler().setParallelPool(ForkJoinPool.commonPool());
+      }
+      if (useEntityStore)
+      {
+         headless.getWorld().enableEntityStore();
+      }
+      headless.getScheduler().setTickBudget(tickEventBudget,
+         tickMillisBudget);
+      headless.getScheduler().setBacklogPolicy(backlogPolicy);
+
+      long start = System.nanoTime();
+      if (checkpointFile != null)
+      {
+         headless.runFor((long)(hours * MILLIS_PER_HOUR),
+            new CheckpointLog(Paths.get(checkpointFile)),
+            CHECKPOINT_INTERVAL);
+      }
+      else
+      {
+         headless.runFor((long)(hours * MILLIS_PER_HOUR));
+      }
+      long elapsed = (System.nanoTime() - start) / 1000000;
+
+      System.out.println(String.format(
+         "simulated %.2f h in %d ms: %d events, %d still pending",
+         hours, elapsed, headless.getEventsExecuted(),
+         headless.getScheduler().size()));
+      System.out.println(headless.countEntities());
+      if (tickEventBudget > 0 || tickMillisBudget > 0)
+      {
+         EventScheduler scheduler = headless.getScheduler();
+         System.out.println(String.format(
+            "%d ticks over budget, max lag %d ms",
+            scheduler.getOverrunTicks(), scheduler.getMaxLag()));
+      }
+
+      if (saveFile != null)
+      {
+         headless.save(saveFile);
+      }
+   }
+}
@@ -0,0 +1,213 @@
+import java.util.Arrays;
+import java.util.Comparator;
+
+/*
+   Binary min-heap of events that records each event's slot in the event
+   itself, so a scheduled event can be cancelled in O(log n) rather than
+   by the linear search PriorityQueue.remove performs.  This is the
+   reference backend: events come out in exact comparator order.
+*/
+final class HeapEventQueue
+   implements EventQueue
+{
+   private static final int INITIAL_CAPACITY = 64;
+
+   private final Comparator<Event> comparator;
+   private final boolean defaultOrder;
+   private Event[] heap;
+   private int size;
+
+   public HeapEventQueue(Comparator<Event> comparator)
+   {
+      this.comparator = comparator;
+      this.defaultOrder = comparator instanceof EventComparator;
+      this.heap = new Event[INITIAL_CAPACITY];
+   }
+
+   public boolean isEmpty()
+   {
+      return size == 0;
+   }
+
+   public int size()
+   {
+      return size;
+   }
+
+   public void add(Event event)
+   {
+      if (this.size == this.heap.length)
+      {
+         this.heap = Arrays.copyOf(this.heap, this.heap.length * 2);
+      }
+
+      this.heap[this.size] = event;
+      event.setQueueIndex(this.size);
+      this.size++;
+      siftUp(this.size - 1);
+   }
+
+   public Event peek()
+   {
+      return this.size == 0 ? null : this.heap[0];
+   }
+
+   public Event pollDue(long time)
+   {
+      if (this.size == 0 || this.heap[0].getTime() >= time)
+      {
+         return null;
+      }
+
+      return poll();
+   }
+
+   public long nextDueTime()
+   {
+      return this.size == 0 ? Long.MAX_VALUE : this.heap[0].getTime() + 1;
+   }
+
+   public long oldestDueTime(long time)
+   {
+      return this.size == 0 || this.heap[0].getTime() >= time ?
+         Long.MAX_VALUE : this.heap[0].getTime();
+   }
+
+   /*
+      Walks only the part of the heap that is due, since nothing below an
+      event that is not due can be.
+   */
+   public int countDue(long time)
+   {
+      if (this.size == 0 || this.heap[0].getTime() >= time)
+      {
+         return 0;
+      }
+
+      int count = 0;
+      int[] stack = new int[32];
+      int top = 0;
+      stack[top++] = 0;
+      while (top > 0)
+      {
+         int idx = stack[--top];
+         count++;
+         for (int child = 2 * idx + 1; child <= 2 * idx + 2; child++)
+         {
+            if (child < this.size && this.heap[child].getTime() < time)
+            {
+               if (top == stack.length)
+               {
+                  stack = Arrays.copyOf(stack, top * 2);
+               }
+               stack[top++] = child;
+            }
+         }
+      }
+      return count;
+   }
+
+   public Event poll()
+   {
+      if (this.size == 0)
+      {
+         return null;
+      }
+
+      Event first = this.heap[0];
+      removeAt(0);
+      return first;
+   }
+
+   public boolean remove(Event event)
+   {
+      int idx = event.getQueueIndex();
+      if (idx < 0 || idx >= this.size || this.heap[idx] != event)
+      {
+         return false;
+      }
+
+      removeAt(idx);
+      return true;
+   }
+
+   private void removeAt(int idx)
+   {
+      Event removed = this.heap[idx];
+      this.size--;
+
+      if (idx != this.size)
+      {
+         Event last = this.heap[this.size];
+         this.heap[idx] = last;
+         last.setQueueIndex(idx);
+         siftDown(idx);
+         if (this.heap[idx] == last)
+         {
+            siftUp(idx);
+         }
+      }
+
+      this.heap[this.size] = null;
+      removed.setQueueIndex(-1);
+   }
+
+   private void siftUp(int idx)
+   {
+      Event event = this.heap[idx];
+      while (idx > 0)
+      {
+         int parent = (idx - 1) >>> 1;
+         if (compare(event, this.heap[parent]) >= 0)
+         {
+            break;
+         }
+         place(this.heap[parent], idx);
+         idx = parent;
+      }
+      place(event, idx);
+   }
+
+   private void siftDown(int idx)
+   {
+      Event event = this.heap[idx];
+      int half = this.size >>> 1;
+      while (idx < half)
+      {
+         int child = 2 * idx + 1;
+         int right = child + 1;
+         if (right < this.size &&
+            compare(this.heap[right], this.heap[child]) < 0)
+         {
+            child = right;
+         }
+         if (compare(event, this.heap[child]) <= 0)
+         {
+            break;
+         }
+         place(this.heap[child], idx);
+         idx = child;
+      }
+      place(event, idx);
+   }
+
+   /*
+      The usual (time, sequence) order is compared inline on the events'
+      fields rather than through the Comparator.
+   */
+   private int compare(Event lft, Event rht)
+   {
+      if (this.defaultOrder)
+      {
+         return EventComparator.compare(lft.getTime(), lft.getSequence(),
+            rht.getTime(), rht.getSequence());
+      }
+      return this.comparator.compare(lft, rht);
+   }
+
+   private void place(Event event, int idx)
+   {
+      this.heap[idx] = event;
+      event.setQueueIndex(idx);
+   }
+}
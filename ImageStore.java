@@ -1,31 +1,292 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Collections;
 import java.util.List;
-import java.util.LinkedList;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import processing.core.PApplet;
 import processing.core.PImage;
 
+/*
+   Images by key.  Files requested through requestImage are decoded and
+   alpha-keyed on a pool of loader threads while the rest of setup goes
+   on; awaitImages then seals each key's SpriteSequence with its images,
+   in request order.  Sequences exist as soon as their key is requested,
+   so world loading can hand them out before the pixels arrive.
+
+   With a cache directory set, keyed pixel data is kept on disk, one
+   entry per image file and mask color, so a warm start skips both
+   decoding and keying.  Files are found where loadImage finds them, in
+   the sketch's data folder and then its sketch folder.  An entry records
+   the file's modification time and is rewritten when the file changes;
+   entries the last load did not use are deleted once it finishes.
+*/
 final class ImageStore
 {
-   private Map<String, List<PImage>> images;
-   private List<PImage> defaultImages;
+   private static final int CACHE_MAGIC = 0x494d4331;
+
+   private Map<String, SpriteSequence> sprites;
+   private SpriteSequence defaultImages;
+   private final Map<String, List<Future<PImage>>> pending;
+   private ExecutorService loader;
+   private Path cacheDirectory;
+   private final Set<Path> usedCacheFiles;
 
    public ImageStore(PImage defaultImage)
    {
-      this.images = new HashMap<>();
-      defaultImages = new LinkedList<>();
-      defaultImages.add(defaultImage);
+      this.sprites = new HashMap<>();
+      defaultImages = new SpriteSequence(
+         Collections.singletonList(defaultImage));
+      this.pending = new LinkedHashMap<>();
+      this.usedCacheFiles = ConcurrentHashMap.newKeySet();
    }
 
-   public Map<String, List<PImage>> getImages()
+   /*
+      The sequence for a key, or the default images for an unknown one.
+   */
+   public SpriteSequence getSprites(String key)
    {
-      return images;
+      return this.sprites.getOrDefault(key, this.defaultImages);
    }
 
-   public List<PImage> getDefaultImages()
+   public SpriteSequence getDefaultImages()
    {
       return defaultImages;
    }
-}
 
+   public void setCacheDirectory(Path cacheDirectory)
+   {
+      this.cacheDirectory = cacheDirectory;
+   }
+
+   /*
+      Starts loading an image for the given key.  When keyed is set,
+      pixels of maskColor are made transparent.
+   */
+   public void requestImage(String key, String file, PApplet screen,
+      boolean keyed, int maskColor)
+   {
+      this.sprites.computeIfAbsent(key, k -> new SpriteSequence());
+
+      if (this.loader == null)
+      {
+         this.loader = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), task -> {
+               Thread thread = new Thread(task, "image loader");
+               thread.setDaemon(true);
+               return thread;
+            });
+      }
+
+      this.pending.computeIfAbsent(key, k -> new ArrayList<>())
+         .add(this.loader.submit(() ->
+            loadImage(file, screen, keyed, maskColor)));
+   }
+
+   /*
+      Waits for every requested image and seals each key's sequence with
+      those that loaded.  A key whose images all failed gets the default
+      images, as if it had never been listed.
+   */
+   public void awaitImages()
+   {
+      for (Map.Entry<String, List<Future<PImage>>> entry :
+         this.pending.entrySet())
+      {
+         List<PImage> imgs = new ArrayList<>();
+         for (Future<PImage> future : entry.getValue())
+         {
+            try
+            {
+               PImage img = future.get();
+               if (img != null && img.width != -1)
+               {
+                  imgs.add(img);
+               }
+            }
+            catch (ExecutionException e)
+            {
+               System.err.println(e.getCause());
+            }
+            catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+               return;
+            }
+         }
+
+         if (imgs.isEmpty())
+         {
+            imgs.add(this.defaultImages.get(0));
+         }
+         this.sprites.get(entry.getKey()).seal(imgs);
+      }
+
+      this.pending.clear();
+      if (this.loader != null)
+      {
+         this.loader.shutdown();
+         this.loader = null;
+      }
+      pruneCache();
+   }
+
+   private PImage loadImage(String file, PApplet screen, boolean keyed,
+      int maskColor) throws IOException
+   {
+      Path cacheFile = null;
+      String cacheKey = null;
+      if (this.cacheDirectory != null)
+      {
+         Path path = Paths.get(screen.dataPath(file));
+         if (!Files.exists(path))
+         {
+            path = Paths.get(screen.sketchPath(file));
+         }
+         if (Files.exists(path))
+         {
+            String entry = path.toAbsolutePath() + "|" +
+               (keyed ? Integer.toHexString(maskColor) : "-");
+            cacheKey = entry + "|" +
+               Files.getLastModifiedTime(path).toMillis();
+            cacheFile = this.cacheDirectory.resolve(
+               String.format("%08x.px", entry.hashCode()));
+            this.usedCacheFiles.add(cacheFile);
+
+            PImage cached = readCache(cacheFile, cacheKey);
+            if (cached != null)
+            {
+               return cached;
+            }
+         }
+      }
+
+      PImage img = screen.loadImage(file);
+      if (img != null && img.width != -1)
+      {
+         if (keyed)
+         {
+            Functions.setAlpha(img, maskColor, 0);
+         }
+         if (cacheFile != null)
+         {
+            writeCache(cacheFile, cacheKey, img);
+         }
+      }
+      return img;
+   }
+
+   /*
+      Deletes cache entries, and temporary files left by failed writes,
+      that no image loaded since the store was made has used.
+   */
+   private void pruneCache()
+   {
+      if (this.cacheDirectory == null ||
+         !Files.isDirectory(this.cacheDirectory))
+      {
+         return;
+      }
+
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(
+         this.cacheDirectory, "*.{px,tmp}"))
+      {
+         for (Path entry : entries)
+         {
+            if (!this.usedCacheFiles.contains(entry))
+            {
+               Files.deleteIfExists(entry);
+            }
+         }
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
+      }
+   }
 
+   /*
+      Returns null on a miss, including a hash collision with a different
+      key, an entry for an older version of the file, or a damaged entry.
+   */
+   private static PImage readCache(Path cacheFile, String cacheKey)
+   {
+      if (!Files.isRegularFile(cacheFile))
+      {
+         return null;
+      }
+
+      try
+      {
+         ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(cacheFile));
+         if (in.getInt() != CACHE_MAGIC)
+         {
+            return null;
+         }
+         byte[] key = new byte[in.getInt()];
+         in.get(key);
+         if (!cacheKey.equals(new String(key, StandardCharsets.UTF_8)))
+         {
+            return null;
+         }
+
+         int width = in.getInt();
+         int height = in.getInt();
+         int format = in.getInt();
+         PImage img = new PImage(width, height, format);
+         img.loadPixels();
+         in.asIntBuffer().get(img.pixels);
+         img.updatePixels();
+         return img;
+      }
+      catch (IOException | RuntimeException e)
+      {
+         return null;
+      }
+   }
 
+   private static void writeCache(Path cacheFile, String cacheKey,
+      PImage img)
+   {
+      img.loadPixels();
+      byte[] key = cacheKey.getBytes(StandardCharsets.UTF_8);
+      ByteBuffer out = ByteBuffer.allocate(5 * Integer.BYTES + key.length +
+         img.pixels.length * Integer.BYTES);
+      out.putInt(CACHE_MAGIC);
+      out.putInt(key.length);
+      out.put(key);
+      out.putInt(img.width);
+      out.putInt(img.height);
+      out.putInt(img.format);
+      out.asIntBuffer().put(img.pixels);
+
+      /* written aside and moved into place so readers never see half an
+         entry; a failed write only costs a cold start next time */
+      try
+      {
+         Files.createDirectories(cacheFile.getParent());
+         Path tmp = Files.createTempFile(cacheFile.getParent(), "px", ".tmp");
+         Files.write(tmp, out.array());
+         Files.move(tmp, cacheFile, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
+      }
+   }
+}
@@ -0,0 +1,466 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+   Pathfinding over the world's occupancy grid.  A plan avoids every cell
+   the caller's predicate rejects at the time it is made, which for miners
+   is every occupied cell, movers included.  Once made, though, a path is
+   only dropped early for a new static entity (obstacle, blacksmith or
+   vein) on it; movers, ore and quakes come and go too often, so a step
+   they block is noticed when it comes up and the path is replanned then.
+
+   A* paths are cached per mover and followed until a step turns out to be
+   blocked.  Each cell knows which cached paths step through it, so a new
+   wall drops only those; a wall that goes away leaves every cached path
+   walkable, and they are kept.
+
+   The search keeps its costs and parents in arrays over a window of cells
+   around the start, stamped with a generation so nothing is cleared
+   between plans.  A search that fails is remembered, along with the cells
+   it looked at, and is not repeated until one of those cells changes.
+*/
+final class PathFinder
+{
+   private static final int MAX_SEARCH_NODES = 4096;
+
+   /* the search window is at most this many cells on a side, so large
+      worlds do not need scratch for every cell */
+   private static final int SEARCH_WINDOW = 512;
+   private static final int MAX_FAILED_PLANS = 64;
+
+   private static final int[] STEP_X = {1, -1, 0, 0};
+   private static final int[] STEP_Y = {0, 0, 1, -1};
+
+   private static final class CachedPath
+   {
+      final Point goal;
+      final ArrayDeque<Point> steps;
+
+      CachedPath(Point goal, ArrayDeque<Point> steps)
+      {
+         this.goal = goal;
+         this.steps = steps;
+      }
+   }
+
+   /* a search that found nothing, and the box of cells it tested */
+   private static final class FailedPlan
+   {
+      final Point start;
+      final Point goal;
+      final CellPredicate free;
+      final int minX;
+      final int minY;
+      final int maxX;
+      final int maxY;
+
+      FailedPlan(Point start, Point goal, CellPredicate free, int minX,
+         int minY, int maxX, int maxY)
+      {
+         this.start = start;
+         this.goal = goal;
+         this.free = free;
+         this.minX = minX;
+         this.minY = minY;
+         this.maxX = maxX;
+         this.maxY = maxY;
+      }
+
+      boolean covers(int x, int y)
+      {
+         return x >= this.minX && x <= this.maxX && y >= this.minY &&
+            y <= this.maxY;
+      }
+   }
+
+   private final WorldModel world;
+   private final Map<Entity, CachedPath> paths;
+   private final Map<Long, Set<Entity>> routes;
+   private final List<FailedPlan> failed;
+
+   /* search scratch, indexed by cell within the window */
+   private final int windowCols;
+   private final int windowRows;
+   private int windowX;
+   private int windowY;
+   private int[] costs;
+   private int[] parents;
+   private int[] stamps;
+   private int generation;
+
+   /* open list: a binary heap of (estimated total << 32 | cell) */
+   private long[] open;
+   private int openSize;
+
+   public PathFinder(WorldModel world)
+   {
+      this.world = world;
+      this.paths = new HashMap<>();
+      this.routes = new HashMap<>();
+      this.failed = new ArrayList<>();
+      this.windowCols = Math.min(world.getNumCols(), SEARCH_WINDOW);
+      this.windowRows = Math.min(world.getNumRows(), SEARCH_WINDOW);
+      this.open = new long[64];
+   }
+
+   public static boolean isStaticKind(EntityKind kind)
+   {
+      return kind == EntityKind.OBSTACLE || kind == EntityKind.BLACKSMITH ||
+         kind == EntityKind.VEIN;
+   }
+
+   /*
+      Called by WorldModel whenever the occupant of the cell at pos
+      changes.
+   */
+   public void cellChanged(Point pos, Entity before, Entity after)
+   {
+      if (before != after)
+      {
+         forgetFailures(pos.getX(), pos.getY());
+      }
+
+      boolean wasWall = before != null && isStaticKind(before.getKind());
+      boolean isWall = after != null && isStaticKind(after.getKind());
+      if (isWall && !wasWall)
+      {
+         Set<Entity> movers = this.routes.remove(cellKey(pos));
+         if (movers != null)
+         {
+            for (Entity mover : movers)
+            {
+               forget(mover);
+            }
+         }
+      }
+   }
+
+   public void forget(Entity entity)
+   {
+      CachedPath path = this.paths.remove(entity);
+      if (path != null)
+      {
+         for (Point step : path.steps)
+         {
+            unroute(entity, step);
+         }
+      }
+   }
+
+   private void forgetFailures(int x, int y)
+   {
+      for (int i = this.failed.size() - 1; i >= 0; i--)
+      {
+         if (this.failed.get(i).covers(x, y))
+         {
+            int last = this.failed.size() - 1;
+            this.failed.set(i, this.failed.get(last));
+            this.failed.remove(last);
+         }
+      }
+   }
+
+   private boolean hasFailed(Point start, Point goal, CellPredicate free)
+   {
+      for (FailedPlan plan : this.failed)
+      {
+         if (plan.free == free && plan.start.equals(start) &&
+            plan.goal.equals(goal))
+         {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private void route(Entity mover, CachedPath path)
+   {
+      this.paths.put(mover, path);
+      for (Point step : path.steps)
+      {
+         this.routes.computeIfAbsent(cellKey(step), k -> new HashSet<>())
+            .add(mover);
+      }
+   }
+
+   private void unroute(Entity mover, Point step)
+   {
+      long key = cellKey(step);
+      Set<Entity> movers = this.routes.get(key);
+      if (movers != null)
+      {
+         movers.remove(mover);
+         if (movers.isEmpty())
+         {
+            this.routes.remove(key);
+         }
+      }
+   }
+
+   private static long cellKey(Point pos)
+   {
+      return ((long)pos.getY() << 32) | (pos.getX() & 0xffffffffL);
+   }
+
+   public boolean isStaticallyBlocked(int x, int y)
+   {
+      Entity occupant = this.world.isOccupied(x, y) ?
+         this.world.getOccupancyCell(x, y) : null;
+      return occupant != null && isStaticKind(occupant.getKind());
+   }
+
+   /*
+      Next step for a mover heading toward goal along its own A* path,
+      planning a new one when the cached path is stale or blocked.
+   */
+   public Point nextStepAStar(Entity mover, Point goal, CellPredicate free)
+   {
+      CachedPath path = this.paths.get(mover);
+      if (path == null || !path.goal.equals(goal) || path.steps.isEmpty() ||
+         !path.steps.peek().adjacent(mover.position) ||
+         !free.test(this.world, path.steps.peek().getX(),
+            path.steps.peek().getY()))
+      {
+         forget(mover);
+         path = plan(mover.position, goal, free);
+         if (path == null)
+         {
+            return greedyStep(this.world, mover.position, goal, free);
+         }
+         route(mover, path);
+      }
+
+      Point step = path.steps.poll();
+      unroute(mover, step);
+      return step;
+   }
+
+   private CachedPath plan(Point start, Point goal, CellPredicate free)
+   {
+      if (hasFailed(start, goal, free))
+      {
+         return null;
+      }
+
+      placeWindow(start);
+      this.openSize = 0;
+      int startCell = cell(start.getX(), start.getY());
+      visit(startCell, 0, -1);
+      push(entry(estimate(start.getX(), start.getY(), goal), startCell));
+
+      int minX = start.getX();
+      int minY = start.getY();
+      int maxX = minX;
+      int maxY = minY;
+      int expanded = 0;
+      while (this.openSize > 0 && expanded < MAX_SEARCH_NODES)
+      {
+         long next = poll();
+         int cell = (int)next;
+         int x = this.windowX + cell % this.windowCols;
+         int y = this.windowY + cell / this.windowCols;
+         int cost = (int)(next >>> 32) - estimate(x, y, goal);
+         if (cost > this.costs[cell])
+         {
+            continue;
+         }
+
+         if (adjacent(x, y, goal))
+         {
+            ArrayDeque<Point> steps = new ArrayDeque<>();
+            for (int step = cell; step != startCell;
+               step = this.parents[step])
+            {
+               steps.addFirst(this.world.pointAt(
+                  this.windowX + step % this.windowCols,
+                  this.windowY + step / this.windowCols));
+            }
+            return steps.isEmpty() ? null :
+               new CachedPath(goal, steps);
+         }
+
+         expanded++;
+         for (int dir = 0; dir < STEP_X.length; dir++)
+         {
+            int nx = x + STEP_X[dir];
+            int ny = y + STEP_Y[dir];
+            if (!inWindow(nx, ny))
+            {
+               continue;
+            }
+
+            minX = Math.min(minX, nx);
+            minY = Math.min(minY, ny);
+            maxX = Math.max(maxX, nx);
+            maxY = Math.max(maxY, ny);
+            if (!this.world.withinBounds(nx, ny) ||
+               !free.test(this.world, nx, ny))
+            {
+               continue;
+            }
+
+            int neighbor = cell(nx, ny);
+            if (this.stamps[neighbor] != this.generation ||
+               cost + 1 < this.costs[neighbor])
+            {
+               visit(neighbor, cost + 1, cell);
+               push(entry(cost + 1 + estimate(nx, ny, goal), neighbor));
+            }
+         }
+      }
+
+      if (this.failed.size() == MAX_FAILED_PLANS)
+      {
+         this.failed.remove(0);
+      }
+      this.failed.add(new FailedPlan(start, goal, free, minX, minY, maxX,
+         maxY));
+      return null;
+   }
+
+   /*
+      Centers the search window on start, kept inside the world, and
+      starts a new generation of scratch.
+   */
+   private void placeWindow(Point start)
+   {
+      this.windowX = Math.max(0, Math.min(
+         start.getX() - this.windowCols / 2,
+         this.world.getNumCols() - this.windowCols));
+      this.windowY = Math.max(0, Math.min(
+         start.getY() - this.windowRows / 2,
+         this.world.getNumRows() - this.windowRows));
+
+      if (this.stamps == null)
+      {
+         int cells = this.windowCols * this.windowRows;
+         this.costs = new int[cells];
+         this.parents = new int[cells];
+         this.stamps = new int[cells];
+      }
+      if (++this.generation == 0)
+      {
+         Arrays.fill(this.stamps, 0);
+         this.generation = 1;
+      }
+   }
+
+   private boolean inWindow(int x, int y)
+   {
+      return x >= this.windowX && x < this.windowX + this.windowCols &&
+         y >= this.windowY && y < this.windowY + this.windowRows;
+   }
+
+   private int cell(int x, int y)
+   {
+      return (y - this.windowY) * this.windowCols + (x - this.windowX);
+   }
+
+   private void visit(int cell, int cost, int parent)
+   {
+      this.stamps[cell] = this.generation;
+      this.costs[cell] = cost;
+      this.parents[cell] = parent;
+   }
+
+   private static long entry(int total, int cell)
+   {
+      return ((long)total << 32) | cell;
+   }
+
+   /* ties keep the order java.util.PriorityQueue would give them */
+   private void push(long entry)
+   {
+      if (this.openSize == this.open.length)
+      {
+         this.open = Arrays.copyOf(this.open, this.openSize * 2);
+      }
+
+      int k = this.openSize++;
+      while (k > 0)
+      {
+         int parent = (k - 1) >>> 1;
+         if (total(entry) >= total(this.open[parent]))
+         {
+            break;
+         }
+         this.open[k] = this.open[parent];
+         k = parent;
+      }
+      this.open[k] = entry;
+   }
+
+   private long poll()
+   {
+      long result = this.open[0];
+      int size = --this.openSize;
+      if (size > 0)
+      {
+         long last = this.open[size];
+         int k = 0;
+         int half = size >>> 1;
+         while (k < half)
+         {
+            int child = 2 * k + 1;
+            if (child + 1 < size &&
+               total(this.open[child]) > total(this.open[child + 1]))
+            {
+               child++;
+            }
+            if (total(last) <= total(this.open[child]))
+            {
+               break;
+            }
+            this.open[k] = this.open[child];
+            k = child;
+         }
+         this.open[k] = last;
+      }
+      return result;
+   }
+
+   private static int total(long entry)
+   {
+      return (int)(entry >>> 32);
+   }
+
+   private static boolean adjacent(int x, int y, Point goal)
+   {
+      return (x == goal.getX() && Math.abs(y - goal.getY()) == 1) ||
+         (y == goal.getY() && Math.abs(x - goal.getX()) == 1);
+   }
+
+   private static int estimate(int x, int y, Point goal)
+   {
+      return Math.max(0, Math.abs(goal.getX() - x) +
+         Math.abs(goal.getY() - y) - 1);
+   }
+
+   /*
+      The original stepping rule: try the horizontal move toward the goal,
+      then the vertical one, otherwise stay put.
+   */
+   public static Point greedyStep(WorldModel world, Point pos, Point goal,
+      CellPredicate free)
+   {
+      int horiz = Integer.signum(goal.getX() - pos.getX());
+      if (horiz != 0 && free.test(world, pos.getX() + horiz, pos.getY()))
+      {
+         return world.pointAt(pos.getX() + horiz, pos.getY());
+      }
+
+      int vert = Integer.signum(goal.getY() - pos.getY());
+      if (vert != 0 && free.test(world, pos.getX(), pos.getY() + vert))
+      {
+         return world.pointAt(pos.getX(), pos.getY() + vert);
+      }
+
+      return pos;
+   }
+}
@@ -1,6 +1,3 @@
-import processing.core.PImage;
-
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Optional;
 
@@ -12,7 +9,10 @@ final class Point
    private static final String QUAKE_ID = "quake";
    private static final int QUAKE_ACTION_PERIOD = 1100;
    private static final int QUAKE_ANIMATION_PERIOD = 100;
-   private static final int ORE_REACH = 1;
+   static final int ORE_REACH = 1;
+
+   /* where removed entities are parked; shared since points are immutable */
+   public static final Point OFF_GRID = new Point(-1, -1);
 
    public int getX(){
        return x;
@@ -31,16 +31,7 @@ final class Point
     public Optional<Entity> findNearest(WorldModel world,
                                         EntityKind kind)
     {
-       List<Entity> ofType = new LinkedList<>();
-       for (Entity entity : world.getEntities())
-       {
-          if (entity.getKind() == kind)
-          {
-             ofType.add(entity);
-          }
-       }
-
-       return nearestEntity(ofType);
+       return world.findNearest(this, kind);
     }
 
     public Optional<Entity> nearestEntity(List<Entity> entities)
@@ -71,7 +62,7 @@ final class Point
 
     public Entity createMinerFull(String id, int resourceLimit,
                                   int actionPeriod, int animationPeriod,
-                                  List<PImage> images)
+                                  SpriteSequence images)
     {
        return new Entity(EntityKind.MINER_FULL, id, this, images,
           resourceLimit, resourceLimit, actionPeriod, animationPeriod);
@@ -79,35 +70,42 @@ final class Point
 
     public Entity createMinerNotFull(String id, int resourceLimit,
                                      int actionPeriod, int animationPeriod,
-                                     List<PImage> images)
+                                     SpriteSequence images)
     {
        return new Entity(EntityKind.MINER_NOT_FULL, id, this, images,
           resourceLimit, 0, actionPeriod, animationPeriod);
     }
 
     public Entity createObstacle(String id,
-                                 List<PImage> images)
+                                 SpriteSequence images)
     {
        return new Entity(EntityKind.OBSTACLE, id, this, images,
           0, 0, 0, 0);
     }
 
+    public Entity createBlacksmith(String id,
+                                   SpriteSequence images)
+    {
+       return new Entity(EntityKind.BLACKSMITH, id, this, images,
+          0, 0, 0, 0);
+    }
+
     public Entity createOre(String id, int actionPeriod,
-                            List<PImage> images)
+                            SpriteSequence images)
     {
        return new Entity(EntityKind.ORE, id, this, images, 0, 0,
           actionPeriod, 0);
     }
 
     public Entity createOreBlob(String id,
-                                int actionPeriod, int animationPeriod, List<PImage> images)
+                                int actionPeriod, int animationPeriod, SpriteSequence images)
     {
        return new Entity(EntityKind.ORE_BLOB, id, this, images,
              0, 0, actionPeriod, animationPeriod);
     }
 
     public Entity createVein(String id, int actionPeriod,
-                             List<PImage> images)
+                             SpriteSequence images)
     {
        return new Entity(EntityKind.VEIN, id, this, images, 0, 0,
           actionPeriod, 0);
@@ -119,11 +117,12 @@ final class Point
        {
           for (int dx = -ORE_REACH; dx <= ORE_REACH; dx++)
           {
-             Point newPt = new Point(this.x + dx, this.y + dy);
-             if (world.withinBounds(newPt) &&
-                !world.isOccupied(newPt))
+             int newX = this.x + dx;
+             int newY = this.y + dy;
+             if (world.withinBounds(newX, newY) &&
+                !world.isOccupied(newX, newY))
              {
-                return Optional.of(newPt);
+                return Optional.of(world.pointAt(newX, newY));
              }
           }
        }
@@ -131,7 +130,7 @@ final class Point
        return Optional.empty();
     }
 
-    public Entity createQuake(List<PImage> images)
+    public Entity createQuake(SpriteSequence images)
    {
       return new Entity(EntityKind.QUAKE, QUAKE_ID, this, images,
          0, 0, QUAKE_ACTION_PERIOD, QUAKE_ANIMATION_PERIOD);
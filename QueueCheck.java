@@ -0,0 +1,206 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+   Differential check of the event queues.  The same random stream of
+   adds, removals and polls is fed to a HeapEventQueue and to a
+   TimingWheelEventQueue with a one-millisecond tick, which must then
+   agree event for event: same events released in the same order, same
+   removals accepted, and the same sizes, due counts and oldest due
+   times.  Times span every wheel level and the overflow bucket, and some
+   events are added already due, so cascades, redistribution and the
+   ready-list sort are all exercised.
+
+   usage: QueueCheck [-seeds n] [-ops n]
+
+      mvn compile exec:java -Dbenchmark.mainClass=QueueCheck
+*/
+public final class QueueCheck
+{
+   private static final String SEEDS_FLAG = "-seeds";
+   private static final String OPS_FLAG = "-ops";
+
+   private static final int DEFAULT_SEEDS = 20;
+   private static final int DEFAULT_OPS = 200000;
+
+   /* longer than the four 64-slot levels span, to reach the overflow */
+   private static final long MAX_DELAY = 1L << 26;
+
+   private final Random rand;
+   private final HeapEventQueue heap;
+   private final TimingWheelEventQueue wheel;
+
+   /* index i holds an event and its twin in the other queue */
+   private final List<Event> heapEvents;
+   private final List<Event> wheelEvents;
+   private long now;
+   private long nextSequence;
+
+   public QueueCheck(long seed)
+   {
+      this.rand = new Random(seed);
+      this.heap = new HeapEventQueue(new EventComparator());
+      this.wheel = new TimingWheelEventQueue(1);
+      this.heapEvents = new ArrayList<>();
+      this.wheelEvents = new ArrayList<>();
+   }
+
+   /*
+      Runs the given number of random operations; throws on the first
+      disagreement.
+   */
+   public void run(int ops)
+   {
+      for (int op = 0; op < ops; op++)
+      {
+         int choice = this.rand.nextInt(10);
+         if (choice < 5)
+         {
+            add();
+         }
+         else if (choice < 7)
+         {
+            remove();
+         }
+         else
+         {
+            poll();
+         }
+         compareState(op);
+      }
+
+      this.now = Long.MAX_VALUE - 1;
+      poll();
+      check(this.heap.isEmpty() && this.wheel.isEmpty(), "final drain");
+   }
+
+   private void add()
+   {
+      long delay;
+      switch (this.rand.nextInt(4))
+      {
+      case 0:
+         /* already due, or due within the current tick */
+         delay = -this.rand.nextInt(50);
+         break;
+      case 1:
+         delay = this.rand.nextInt(64);
+         break;
+      case 2:
+         delay = this.rand.nextInt(1 << 18);
+         break;
+      default:
+         delay = (long)(this.rand.nextDouble() * MAX_DELAY);
+         break;
+      }
+
+      long time = this.now + delay;
+      long sequence = this.nextSequence++;
+      Event heapEvent = new Event(null, time, null);
+      Event wheelEvent = new Event(null, time, null);
+      heapEvent.setSequence(sequence);
+      wheelEvent.setSequence(sequence);
+      this.heap.add(heapEvent);
+      this.wheel.add(wheelEvent);
+      this.heapEvents.add(heapEvent);
+      this.wheelEvents.add(wheelEvent);
+   }
+
+   private void remove()
+   {
+      if (this.heapEvents.isEmpty())
+      {
+         return;
+      }
+
+      /* polled events stay in the lists, so some removals must fail */
+      int i = this.rand.nextInt(this.heapEvents.size());
+      boolean heapRemoved = this.heap.remove(this.heapEvents.get(i));
+      boolean wheelRemoved = this.wheel.remove(this.wheelEvents.get(i));
+      check(heapRemoved == wheelRemoved, "remove");
+      if (heapRemoved || this.rand.nextBoolean())
+      {
+         forget(i);
+      }
+   }
+
+   private void poll()
+   {
+      if (this.now != Long.MAX_VALUE - 1)
+      {
+         this.now += this.rand.nextInt(4) == 0 ?
+            this.rand.nextInt(1 << 20) : this.rand.nextInt(100);
+      }
+
+      int limit = this.rand.nextInt(64);
+      for (int polled = 0; polled < limit || this.now == Long.MAX_VALUE - 1;
+         polled++)
+      {
+         Event heapEvent = this.heap.pollDue(this.now);
+         Event wheelEvent = this.wheel.pollDue(this.now);
+         if (heapEvent == null || wheelEvent == null)
+         {
+            check(heapEvent == wheelEvent, "pollDue released one side only");
+            return;
+         }
+         check(heapEvent.getTime() == wheelEvent.getTime() &&
+            heapEvent.getSequence() == wheelEvent.getSequence(),
+            "pollDue order");
+      }
+   }
+
+   private void compareState(int op)
+   {
+      check(this.heap.size() == this.wheel.size(), "size at op " + op);
+      check(this.heap.oldestDueTime(this.now) ==
+         this.wheel.oldestDueTime(this.now), "oldestDueTime at op " + op);
+      check(this.heap.countDue(this.now) == this.wheel.countDue(this.now),
+         "countDue at op " + op);
+   }
+
+   private void forget(int i)
+   {
+      int last = this.heapEvents.size() - 1;
+      this.heapEvents.set(i, this.heapEvents.get(last));
+      this.wheelEvents.set(i, this.wheelEvents.get(last));
+      this.heapEvents.remove(last);
+      this.wheelEvents.remove(last);
+   }
+
+   private void check(boolean condition, String what)
+   {
+      if (!condition)
+      {
+         throw new IllegalStateException(String.format(
+            "queues disagree: %s (time %d)", what, this.now));
+      }
+   }
+
+   public static void main(String[] args)
+   {
+      int seeds = DEFAULT_SEEDS;
+      int ops = DEFAULT_OPS;
+
+      for (int i = 0; i < args.length; i++)
+      {
+         switch (args[i])
+         {
+            case SEEDS_FLAG:
+               seeds = Integer.parseInt(args[++i]);
+               break;
+            case OPS_FLAG:
+               ops = Integer.parseInt(args[++i]);
+               break;
+         }
+      }
+
+      for (int seed = 0; seed < seeds; seed++)
+      {
+         new QueueCheck(seed).run(ops);
+      }
+      System.out.println(String.format(
+         "heap and timing wheel agree over %d seeds of %d operations",
+         seeds, ops));
+   }
+}
@@ -0,0 +1,29 @@
+/*
+   Clock that only moves when told to, so a run can skip idle time and
+   replay identically.
+*/
+final class SimulatedClock
+   implements Clock
+{
+   private long time;
+
+   public SimulatedClock(long startTime)
+   {
+      this.time = startTime;
+   }
+
+   public long currentTimeMillis()
+   {
+      return time;
+   }
+
+   public void advanceTo(long time)
+   {
+      this.time = Math.max(this.time, time);
+   }
+
+   public void advanceBy(long millis)
+   {
+      advanceTo(this.time + millis);
+   }
+}
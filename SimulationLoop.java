@@ -0,0 +1,109 @@
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+   Runs the scheduler on its own thread at a fixed tick rate.  At the end
+   of every tick the visible part of the world is captured into a
+   ViewFrame and published for the renderer, which never touches the
+   world itself while the loop runs.
+
+   Frames are double buffered through a spare: the simulation fills its
+   back frame and swaps it with the shared one, and the renderer swaps its
+   front frame for the shared one whenever that is fresh.  Each side only
+   ever writes the frame it holds, so neither waits for the other.
+*/
+final class SimulationLoop
+   implements Runnable
+{
+   private final WorldModel world;
+   private final EventScheduler scheduler;
+   private final long tickPeriod;
+   private final AtomicReference<ViewFrame> shared;
+   private ViewFrame back;
+   private ViewFrame front;
+   /* column in the high half, row in the low, so a pan is published as
+      a single write and a capture never mixes two origins */
+   private volatile long viewOrigin;
+   private volatile boolean running;
+   private Thread thread;
+
+   public SimulationLoop(WorldModel world, EventScheduler scheduler,
+      int viewRows, int viewCols, long tickPeriod)
+   {
+      this.world = world;
+      this.scheduler = scheduler;
+      this.tickPeriod = tickPeriod;
+      this.shared = new AtomicReference<>(new ViewFrame(viewRows, viewCols));
+      this.back = new ViewFrame(viewRows, viewCols);
+      this.front = new ViewFrame(viewRows, viewCols);
+   }
+
+   /*
+      Where the renderer's viewport now starts; picked up by the next
+      capture.
+   */
+   public void setViewOrigin(int col, int row)
+   {
+      this.viewOrigin = ((long)col << 32) | (row & 0xffffffffL);
+   }
+
+   public void start()
+   {
+      this.running = true;
+      this.thread = new Thread(this, "simulation");
+      this.thread.setDaemon(true);
+      this.thread.start();
+   }
+
+   public void stop()
+   {
+      this.running = false;
+      if (this.thread != null)
+      {
+         this.thread.interrupt();
+      }
+   }
+
+   public void run()
+   {
+      long next = System.currentTimeMillis();
+      while (this.running)
+      {
+         this.scheduler.updateOnTime(System.currentTimeMillis());
+
+         long origin = this.viewOrigin;
+         this.back.capture(this.world, (int)(origin >> 32), (int)origin);
+         this.back.setFresh(true);
+         this.back = this.shared.getAndSet(this.back);
+
+         /* a tick that overran starts the next one straight away rather
+            than trying to catch up on the missed ones */
+         next = Math.max(next + this.tickPeriod, System.currentTimeMillis());
+         long delay = next - System.currentTimeMillis();
+         if (delay > 0)
+         {
+            try
+            {
+               Thread.sleep(delay);
+            }
+            catch (InterruptedException e)
+            {
+               return;
+            }
+         }
+      }
+   }
+
+   /*
+      The most recently published frame.  Only to be called from the
+      renderer's thread; the frame stays valid until the next call.
+   */
+   public ViewFrame latestFrame()
+   {
+      if (this.shared.get().isFresh())
+      {
+         this.front.setFresh(false);
+         this.front = this.shared.getAndSet(this.front);
+      }
+      return this.front;
+   }
+}
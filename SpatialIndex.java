@@ -0,0 +1,223 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/*
+   Uniform grid of buckets holding the entities of a single kind.  Nearest
+   queries walk outward ring by ring from the query's bucket and stop once
+   no unvisited ring can hold anything closer than the best match so far.
+
+   On very large worlds the buckets are kept in a map holding only the
+   non-empty ones, and a search that would visit more buckets than are
+   populated scans the populated buckets directly instead.
+*/
+final class SpatialIndex
+{
+   private static final int DEFAULT_BUCKET_SIZE = 8;
+   private static final int MAX_DENSE_BUCKETS = 1 << 16;
+
+   private final int bucketSize;
+   private final int bucketRows;
+   private final int bucketCols;
+   private final List<List<Entity>> buckets;
+   private final Map<Long, List<Entity>> sparseBuckets;
+   private int size;
+
+   public SpatialIndex(int numRows, int numCols)
+   {
+      this(numRows, numCols, DEFAULT_BUCKET_SIZE);
+   }
+
+   public SpatialIndex(int numRows, int numCols, int bucketSize)
+   {
+      this.bucketSize = bucketSize;
+      this.bucketRows = Math.max(1, (numRows + bucketSize - 1) / bucketSize);
+      this.bucketCols = Math.max(1, (numCols + bucketSize - 1) / bucketSize);
+      if ((long)this.bucketRows * this.bucketCols > MAX_DENSE_BUCKETS)
+      {
+         this.buckets = null;
+         this.sparseBuckets = new HashMap<>();
+      }
+      else
+      {
+         this.buckets = new ArrayList<>(this.bucketRows * this.bucketCols);
+         for (int i = 0; i < this.bucketRows * this.bucketCols; i++)
+         {
+            this.buckets.add(null);
+         }
+         this.sparseBuckets = null;
+      }
+   }
+
+   public int size()
+   {
+      return size;
+   }
+
+   public void add(Entity entity, Point pos)
+   {
+      long idx = bucketIndex(pos.getX(), pos.getY());
+      List<Entity> bucket = getBucket(idx);
+      if (bucket == null)
+      {
+         bucket = new ArrayList<>();
+         setBucket(idx, bucket);
+      }
+      bucket.add(entity);
+      this.size++;
+   }
+
+   public void remove(Entity entity, Point pos)
+   {
+      long idx = bucketIndex(pos.getX(), pos.getY());
+      List<Entity> bucket = getBucket(idx);
+      if (bucket != null && bucket.remove(entity))
+      {
+         this.size--;
+         if (bucket.isEmpty() && this.sparseBuckets != null)
+         {
+            this.sparseBuckets.remove(idx);
+         }
+      }
+   }
+
+   public void move(Entity entity, Point oldPos, Point newPos)
+   {
+      if (bucketIndex(oldPos.getX(), oldPos.getY()) !=
+         bucketIndex(newPos.getX(), newPos.getY()))
+      {
+         remove(entity, oldPos);
+         add(entity, newPos);
+      }
+   }
+
+   public Optional<Entity> findNearest(Point pos)
+   {
+      if (this.size == 0)
+      {
+         return Optional.empty();
+      }
+
+      int bucketCol = clampCol(pos.getX() / this.bucketSize);
+      int bucketRow = clampRow(pos.getY() / this.bucketSize);
+      int maxRing = Math.max(this.bucketRows, this.bucketCols);
+
+      Entity nearest = null;
+      int nearestDistance = Integer.MAX_VALUE;
+
+      long visited = 0;
+
+      for (int ring = 0; ring <= maxRing; ring++)
+      {
+         if (this.sparseBuckets != null &&
+            visited > this.sparseBuckets.size())
+         {
+            return Optional.ofNullable(scanPopulated(pos));
+         }
+         visited += ring == 0 ? 1 : 8L * ring;
+
+         for (int row = bucketRow - ring; row <= bucketRow + ring; row++)
+         {
+            if (row < 0 || row >= this.bucketRows)
+            {
+               continue;
+            }
+
+            boolean edgeRow = row == bucketRow - ring ||
+               row == bucketRow + ring;
+            int step = edgeRow ? 1 : Math.max(1, 2 * ring);
+
+            for (int col = bucketCol - ring; col <= bucketCol + ring;
+               col += step)
+            {
+               if (col < 0 || col >= this.bucketCols)
+               {
+                  continue;
+               }
+
+               List<Entity> bucket =
+                  getBucket((long)row * this.bucketCols + col);
+               if (bucket == null)
+               {
+                  continue;
+               }
+
+               for (Entity other : bucket)
+               {
+                  int otherDistance = other.position.distanceSquared(pos);
+                  if (otherDistance < nearestDistance)
+                  {
+                     nearest = other;
+                     nearestDistance = otherDistance;
+                  }
+               }
+            }
+         }
+
+         /* anything in the next ring is at least ring * bucketSize + 1
+            cells away along one axis */
+         int reach = ring * this.bucketSize + 1;
+         if (nearest != null && nearestDistance < reach * reach)
+         {
+            break;
+         }
+      }
+
+      return Optional.ofNullable(nearest);
+   }
+
+   private Entity scanPopulated(Point pos)
+   {
+      Entity nearest = null;
+      int nearestDistance = Integer.MAX_VALUE;
+      for (List<Entity> bucket : this.sparseBuckets.values())
+      {
+         for (Entity other : bucket)
+         {
+            int otherDistance = other.position.distanceSquared(pos);
+            if (otherDistance < nearestDistance)
+            {
+               nearest = other;
+               nearestDistance = otherDistance;
+            }
+         }
+      }
+      return nearest;
+   }
+
+   private List<Entity> getBucket(long idx)
+   {
+      return this.buckets != null ? this.buckets.get((int)idx) :
+         this.sparseBuckets.get(idx);
+   }
+
+   private void setBucket(long idx, List<Entity> bucket)
+   {
+      if (this.buckets != null)
+      {
+         this.buckets.set((int)idx, bucket);
+      }
+      else
+      {
+         this.sparseBuckets.put(idx, bucket);
+      }
+   }
+
+   private long bucketIndex(int x, int y)
+   {
+      return (long)clampRow(y / this.bucketSize) * this.bucketCols +
+         clampCol(x / this.bucketSize);
+   }
+
+   private int clampRow(int row)
+   {
+      return Functions.clamp(row, 0, this.bucketRows - 1);
+   }
+
+   private int clampCol(int col)
+   {
+      return Functions.clamp(col, 0, this.bucketCols - 1);
+   }
+}
@@ -0,0 +1,48 @@
+import java.util.List;
+import processing.core.PImage;
+
+/*
+   The frames of one image key, held in an array so that picking the
+   current frame is an index rather than a list walk.  A sequence handed
+   out while its images are still loading is empty until ImageStore seals
+   it; from then on it never changes.  The frames are published through a
+   volatile field, so a thread that sees a sealed sequence also sees its
+   images, even if it started before the sequence was sealed.
+*/
+final class SpriteSequence
+{
+   private static final PImage[] NO_FRAMES = new PImage[0];
+
+   private volatile PImage[] frames;
+   private boolean sealed;
+
+   public SpriteSequence()
+   {
+      this.frames = NO_FRAMES;
+   }
+
+   public SpriteSequence(List<PImage> frames)
+   {
+      seal(frames);
+   }
+
+   public PImage get(int index)
+   {
+      return this.frames[index];
+   }
+
+   public int size()
+   {
+      return this.frames.length;
+   }
+
+   void seal(List<PImage> frames)
+   {
+      if (this.sealed)
+      {
+         throw new IllegalStateException("sprite sequence already sealed");
+      }
+      this.frames = frames.toArray(NO_FRAMES);
+      this.sealed = true;
+   }
+}
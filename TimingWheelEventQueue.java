@@ -0,0 +1,424 @@
+import java.util.Arrays;
+import java.util.Comparator;
+
+/*
+   Hierarchical timing wheel.  Each level has WHEEL_SIZE slots; a slot on
+   level 0 spans one tick and a slot on level n spans WHEEL_SIZE^n ticks.
+   An event is filed on the lowest level whose current window contains its
+   tick, so insert and cancel are O(1).  As time advances, a level-0 slot
+   is expired whole into the ready list, and higher slots are cascaded down
+   when the lower level wraps.  Events further out than the top level wait
+   in an overflow bucket that is redistributed when the top level wraps.
+
+   Events are released with tick resolution: an event is handed out once
+   its whole tick has passed.  Whenever events join the ready list it is
+   sorted by time and then sequence, so what is released comes out in the
+   heap's order.  Releasing a tick at a time still means an event can run
+   in a later updateOnTime call than it would from the heap, so a run is
+   deterministic with either queue, but only matches a heap run when the
+   tick is one millisecond.
+*/
+final class TimingWheelEventQueue
+   implements EventQueue
+{
+   public static final long DEFAULT_TICK_MILLIS = 10;
+
+   private static final int WHEEL_BITS = 6;
+   private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+   private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+   private static final int NUM_LEVELS = 4;
+   private static final int READY = NUM_LEVELS * WHEEL_SIZE;
+   private static final int OVERFLOW = READY + 1;
+   private static final int NUM_BUCKETS = OVERFLOW + 1;
+   private static final int INITIAL_BUCKET_CAPACITY = 4;
+
+   /* holes left by removed events sort to the end */
+   private static final Comparator<Event> READY_ORDER =
+      Comparator.nullsLast(new EventComparator());
+
+   private final long tickMillis;
+   private final Event[][] buckets;
+   private final int[] bucketSizes;
+   private final int[] levelCounts;
+   private int overflowCount;
+   private int readyHead;
+   private int readyCount;
+   private boolean readyUnsorted;
+   private int size;
+
+   /* last tick whose events have all been moved to the ready list */
+   private long currentTick;
+
+   public TimingWheelEventQueue()
+   {
+      this(DEFAULT_TICK_MILLIS);
+   }
+
+   public TimingWheelEventQueue(long tickMillis)
+   {
+      this.tickMillis = tickMillis;
+      this.buckets = new Event[NUM_BUCKETS][];
+      this.bucketSizes = new int[NUM_BUCKETS];
+      this.levelCounts = new int[NUM_LEVELS];
+      this.currentTick = Long.MIN_VALUE;
+   }
+
+   public boolean isEmpty()
+   {
+      return size == 0;
+   }
+
+   public int size()
+   {
+      return size;
+   }
+
+   public void add(Event event)
+   {
+      /* until the first poll anchors the wheel, place files everything
+         into the overflow bucket */
+      place(event);
+      this.size++;
+   }
+
+   public boolean remove(Event event)
+   {
+      int bucket = event.getQueueBucket();
+      int idx = event.getQueueIndex();
+      if (bucket < 0 || bucket >= NUM_BUCKETS || idx < 0 ||
+         idx >= this.bucketSizes[bucket] || this.buckets[bucket][idx] != event)
+      {
+         return false;
+      }
+
+      this.buckets[bucket][idx] = null;
+      uncount(bucket);
+      detach(event);
+      this.size--;
+      return true;
+   }
+
+   public Event pollDue(long time)
+   {
+      advance(Math.floorDiv(time, this.tickMillis) - 1);
+      if (this.readyUnsorted)
+      {
+         sortReady();
+      }
+
+      while (this.readyHead < this.bucketSizes[READY])
+      {
+         Event event = this.buckets[READY][this.readyHead];
+         this.buckets[READY][this.readyHead] = null;
+         this.readyHead++;
+
+         if (event != null)
+         {
+            this.readyCount--;
+            this.size--;
+            detach(event);
+            compactReady();
+            return event;
+         }
+      }
+
+      compactReady();
+      return null;
+   }
+
+   public long nextDueTime()
+   {
+      if (this.readyCount > 0)
+      {
+         return dueTimeOf(this.currentTick);
+      }
+
+      if (this.currentTick != Long.MIN_VALUE)
+      {
+         for (int level = 0; level < NUM_LEVELS; level++)
+         {
+            if (this.levelCounts[level] == 0)
+            {
+               continue;
+            }
+
+            /* filed slots on a level all lie after the current one */
+            int current = (int)((this.currentTick >> (WHEEL_BITS * level)) &
+               WHEEL_MASK);
+            for (int slot = current + 1; slot < WHEEL_SIZE; slot++)
+            {
+               long tick = minTick(level * WHEEL_SIZE + slot);
+               if (tick != Long.MAX_VALUE)
+               {
+                  return dueTimeOf(tick);
+               }
+            }
+         }
+      }
+
+      long tick = minTick(OVERFLOW);
+      return tick == Long.MAX_VALUE ? Long.MAX_VALUE : dueTimeOf(tick);
+   }
+
+   public long oldestDueTime(long time)
+   {
+      advance(Math.floorDiv(time, this.tickMillis) - 1);
+      if (this.readyUnsorted)
+      {
+         sortReady();
+      }
+
+      Event[] ready = this.buckets[READY];
+      for (int i = this.readyHead; i < this.bucketSizes[READY]; i++)
+      {
+         if (ready[i] != null)
+         {
+            return ready[i].getTime();
+         }
+      }
+      return Long.MAX_VALUE;
+   }
+
+   public int countDue(long time)
+   {
+      /* advancing files everything that is due into the ready list */
+      advance(Math.floorDiv(time, this.tickMillis) - 1);
+      return this.readyCount;
+   }
+
+   private long minTick(int bucket)
+   {
+      long min = Long.MAX_VALUE;
+      for (int i = 0; i < this.bucketSizes[bucket]; i++)
+      {
+         Event event = this.buckets[bucket][i];
+         if (event != null)
+         {
+            min = Math.min(min, tickOf(event));
+         }
+      }
+      return min;
+   }
+
+   private long dueTimeOf(long tick)
+   {
+      return (tick + 1) * this.tickMillis;
+   }
+
+   private void advance(long targetTick)
+   {
+      if (this.currentTick == Long.MIN_VALUE)
+      {
+         this.currentTick = targetTick;
+         redistribute(OVERFLOW);
+         return;
+      }
+
+      while (this.currentTick < targetTick)
+      {
+         if (wheelCount() == 0)
+         {
+            this.currentTick = targetTick;
+            return;
+         }
+
+         /* nothing happens before the next wrap of the lowest occupied
+            level, so skip straight to it */
+         int level = 0;
+         while (level < NUM_LEVELS && this.levelCounts[level] == 0)
+         {
+            level++;
+         }
+         this.currentTick = level == 0 ? this.currentTick + 1 :
+            Math.min(targetTick, (this.currentTick | windowMask(level)) + 1);
+
+         if ((this.currentTick & WHEEL_MASK) == 0)
+         {
+            cascade(this.currentTick);
+         }
+
+         expire((int)(this.currentTick & WHEEL_MASK));
+      }
+   }
+
+   private void cascade(long tick)
+   {
+      if ((tick & windowMask(NUM_LEVELS)) == 0)
+      {
+         redistribute(OVERFLOW);
+      }
+
+      for (int level = NUM_LEVELS - 1; level >= 1; level--)
+      {
+         if ((tick & windowMask(level)) == 0)
+         {
+            redistribute(level * WHEEL_SIZE +
+               (int)((tick >> (WHEEL_BITS * level)) & WHEEL_MASK));
+         }
+      }
+   }
+
+   private void redistribute(int bucket)
+   {
+      Event[] events = this.buckets[bucket];
+      int count = this.bucketSizes[bucket];
+      this.bucketSizes[bucket] = 0;
+
+      for (int i = 0; i < count; i++)
+      {
+         Event event = events[i];
+         if (event != null)
+         {
+            events[i] = null;
+            uncount(bucket);
+            place(event);
+         }
+      }
+   }
+
+   private void expire(int slot)
+   {
+      Event[] events = this.buckets[slot];
+      int count = this.bucketSizes[slot];
+      this.bucketSizes[slot] = 0;
+
+      for (int i = 0; i < count; i++)
+      {
+         Event event = events[i];
+         if (event != null)
+         {
+            events[i] = null;
+            this.levelCounts[0]--;
+            append(READY, event);
+            this.readyCount++;
+            this.readyUnsorted = true;
+         }
+      }
+   }
+
+   private void place(Event event)
+   {
+      long tick = tickOf(event);
+
+      if (tick <= this.currentTick)
+      {
+         append(READY, event);
+         this.readyCount++;
+         this.readyUnsorted = true;
+         return;
+      }
+
+      for (int level = 0; level < NUM_LEVELS; level++)
+      {
+         int shift = WHEEL_BITS * (level + 1);
+         if ((tick >> shift) == (this.currentTick >> shift))
+         {
+            append(level * WHEEL_SIZE +
+               (int)((tick >> (WHEEL_BITS * level)) & WHEEL_MASK), event);
+            this.levelCounts[level]++;
+            return;
+         }
+      }
+
+      append(OVERFLOW, event);
+      this.overflowCount++;
+   }
+
+   private void append(int bucket, Event event)
+   {
+      Event[] events = this.buckets[bucket];
+      int count = this.bucketSizes[bucket];
+
+      if (events == null)
+      {
+         events = new Event[INITIAL_BUCKET_CAPACITY];
+         this.buckets[bucket] = events;
+      }
+      else if (count == events.length)
+      {
+         events = Arrays.copyOf(events, events.length * 2);
+         this.buckets[bucket] = events;
+      }
+
+      events[count] = event;
+      this.bucketSizes[bucket] = count + 1;
+      event.setQueueBucket(bucket);
+      event.setQueueIndex(count);
+   }
+
+   private void uncount(int bucket)
+   {
+      if (bucket == READY)
+      {
+         this.readyCount--;
+      }
+      else if (bucket == OVERFLOW)
+      {
+         this.overflowCount--;
+      }
+      else
+      {
+         this.levelCounts[bucket / WHEEL_SIZE]--;
+      }
+   }
+
+   /*
+      Sorts the part of the ready list not yet handed out.  Slots expire
+      in tick order and come out of it nearly sorted, which the sort is
+      quick on.
+   */
+   private void sortReady()
+   {
+      Event[] ready = this.buckets[READY];
+      int end = this.bucketSizes[READY];
+      Arrays.sort(ready, this.readyHead, end, READY_ORDER);
+      for (int i = this.readyHead; i < end; i++)
+      {
+         if (ready[i] != null)
+         {
+            ready[i].setQueueIndex(i);
+         }
+      }
+      this.readyUnsorted = false;
+   }
+
+   private void compactReady()
+   {
+      if (this.readyCount == 0)
+      {
+         Event[] ready = this.buckets[READY];
+         for (int i = this.readyHead; i < this.bucketSizes[READY]; i++)
+         {
+            ready[i] = null;
+         }
+         this.readyHead = 0;
+         this.bucketSizes[READY] = 0;
+      }
+   }
+
+   private int wheelCount()
+   {
+      int count = this.overflowCount;
+      for (int level = 0; level < NUM_LEVELS; level++)
+      {
+         count += this.levelCounts[level];
+      }
+      return count;
+   }
+
+   private long tickOf(Event event)
+   {
+      return Math.floorDiv(event.getTime(), this.tickMillis);
+   }
+
+   private static long windowMask(int level)
+   {
+      return (1L << (WHEEL_BITS * level)) - 1;
+   }
+
+   private static void detach(Event event)
+   {
+      event.setQueueBucket(-1);
+      event.setQueueIndex(-1);
+   }
+}
@@ -0,0 +1,98 @@
+import processing.core.PImage;
+
+/*
+   What the viewport showed at the end of one tick: the origin it was
+   taken at and, per tile, the background and occupant images (null off
+   the world or for an empty cell).  Frames are filled by the simulation
+   thread and only read by the renderer once handed over.
+*/
+final class ViewFrame
+{
+   private final int numRows;
+   private final int numCols;
+   private final PImage background[];
+   private final PImage occupant[];
+   private int col;
+   private int row;
+   private boolean fresh;
+
+   public ViewFrame(int numRows, int numCols)
+   {
+      this.numRows = numRows;
+      this.numCols = numCols;
+      this.background = new PImage[numRows * numCols];
+      this.occupant = new PImage[numRows * numCols];
+      this.col = -1;
+      this.row = -1;
+   }
+
+   public int getCol()
+   {
+      return col;
+   }
+
+   public int getRow()
+   {
+      return row;
+   }
+
+   public int getNumRows()
+   {
+      return numRows;
+   }
+
+   public int getNumCols()
+   {
+      return numCols;
+   }
+
+   public PImage getBackground(int tile)
+   {
+      return this.background[tile];
+   }
+
+   public PImage getOccupant(int tile)
+   {
+      return this.occupant[tile];
+   }
+
+   boolean isFresh()
+   {
+      return fresh;
+   }
+
+   void setFresh(boolean fresh)
+   {
+      this.fresh = fresh;
+   }
+
+   /*
+      Records the tiles of the view whose top-left cell is (col, row).
+   */
+   void capture(WorldModel world, int col, int row)
+   {
+      this.col = col;
+      this.row = row;
+      for (int r = 0; r < this.numRows; r++)
+      {
+         for (int c = 0; c < this.numCols; c++)
+         {
+            int tile = r * this.numCols + c;
+            int x = col + c;
+            int y = row + r;
+            if (!world.withinBounds(x, y))
+            {
+               this.background[tile] = null;
+               this.occupant[tile] = null;
+               continue;
+            }
+
+            this.background[tile] =
+               Entity.getCurrentImage(world.getBackgroundCell(x, y));
+            Entity entity = world.getOccupancyCell(x, y);
+            this.occupant[tile] = entity == null ? null :
+               Entity.getCurrentImage(entity);
+         }
+      }
+   }
+}
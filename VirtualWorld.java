@@ -1,6 +1,9 @@
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
 import processing.core.*;
 
 public final class VirtualWorld
@@ -10,35 +13,55 @@ public final class VirtualWorld
 
    private static final int VIEW_WIDTH = 640;
    private static final int VIEW_HEIGHT = 480;
-   private static final int TILE_WIDTH = 32;
-   private static final int TILE_HEIGHT = 32;
+   static final int TILE_WIDTH = 32;
+   static final int TILE_HEIGHT = 32;
    private static final int WORLD_WIDTH_SCALE = 2;
    private static final int WORLD_HEIGHT_SCALE = 2;
 
    private static final int VIEW_COLS = VIEW_WIDTH / TILE_WIDTH;
    private static final int VIEW_ROWS = VIEW_HEIGHT / TILE_HEIGHT;
-   private static final int WORLD_COLS = VIEW_COLS * WORLD_WIDTH_SCALE;
-   private static final int WORLD_ROWS = VIEW_ROWS * WORLD_HEIGHT_SCALE;
+   static final int WORLD_COLS = VIEW_COLS * WORLD_WIDTH_SCALE;
+   static final int WORLD_ROWS = VIEW_ROWS * WORLD_HEIGHT_SCALE;
 
    private static final String IMAGE_LIST_FILE_NAME = "imagelist";
+   private static final String IMAGE_CACHE_DIR = ".imagecache";
    private static final String DEFAULT_IMAGE_NAME = "background_default";
-   private static final int DEFAULT_IMAGE_COLOR = 0x808080;
+   static final int DEFAULT_IMAGE_COLOR = 0x808080;
 
-   private static final String LOAD_FILE_NAME = "gaia.sav";
+   static final String LOAD_FILE_NAME = "gaia.sav";
 
    private static final String FAST_FLAG = "-fast";
    private static final String FASTER_FLAG = "-faster";
    private static final String FASTEST_FLAG = "-fastest";
+   private static final String TIMING_WHEEL_FLAG = "-wheel";
+   private static final String PARALLEL_FLAG = "-parallel";
+   private static final String ENTITY_STORE_FLAG = "-soa";
+   private static final String THREADED_FLAG = "-threaded";
+   private static final String COLS_FLAG = "-cols";
+   private static final String ROWS_FLAG = "-rows";
+   private static final String BUDGET_FLAG = "-budget";
+   private static final String BUDGET_MILLIS_FLAG = "-budgetms";
+   private static final String BEHIND_FLAG = "-behind";
    private static final double FAST_SCALE = 0.5;
    private static final double FASTER_SCALE = 0.25;
    private static final double FASTEST_SCALE = 0.10;
 
    private static double timeScale = 1.0;
+   private static boolean useTimingWheel = false;
+   private static boolean useParallelTicks = false;
+   private static boolean useEntityStore = false;
+   private static boolean useSimulationThread = false;
+   private static int worldCols = WORLD_COLS;
+   private static int worldRows = WORLD_ROWS;
+   private static int tickEventBudget = 0;
+   private static long tickMillisBudget = 0;
+   private static BacklogPolicy backlogPolicy = BacklogPolicy.CATCH_UP;
 
    private ImageStore imageStore;
    private WorldModel world;
    private WorldView view;
    private EventScheduler scheduler;
+   private SimulationLoop simulation;
 
    private long next_time;
 
@@ -54,22 +77,46 @@ public final class VirtualWorld
    {
       this.imageStore = new ImageStore(
          createImageColored(TILE_WIDTH, TILE_HEIGHT, DEFAULT_IMAGE_COLOR));
-      this.world = new WorldModel(WORLD_ROWS, WORLD_COLS,
+      this.world = new WorldModel(worldRows, worldCols,
          createDefaultBackground(imageStore));
       this.view = new WorldView(VIEW_ROWS, VIEW_COLS, this, world,
          TILE_WIDTH, TILE_HEIGHT);
-      this.scheduler = new EventScheduler(timeScale);
+      this.scheduler = createScheduler();
 
+      /* images decode on loader threads while the world loads */
+      imageStore.setCacheDirectory(Paths.get(IMAGE_CACHE_DIR));
       loadImages(IMAGE_LIST_FILE_NAME, imageStore, this);
       loadWorld(world, LOAD_FILE_NAME, imageStore);
+      if (useEntityStore)
+      {
+         world.enableEntityStore();
+      }
 
       scheduleActions(world, scheduler, imageStore);
+      imageStore.awaitImages();
+
+      if (useSimulationThread)
+      {
+         this.simulation = new SimulationLoop(world, scheduler, VIEW_ROWS,
+            VIEW_COLS, TIMER_ACTION_PERIOD);
+         this.simulation.start();
+      }
+      else
+      {
+         world.addCellListener(view);
+      }
 
       next_time = System.currentTimeMillis() + TIMER_ACTION_PERIOD;
    }
 
    public void draw()
    {
+      if (this.simulation != null)
+      {
+         view.drawFrame(this.simulation.latestFrame());
+         return;
+      }
+
       long time = System.currentTimeMillis();
       if (time >= next_time)
       {
@@ -103,7 +150,28 @@ public final class VirtualWorld
                break;
          }
          view.shiftView(dx, dy);
+         if (this.simulation != null)
+         {
+            this.simulation.setViewOrigin(view.getViewport().getCol(),
+               view.getViewport().getRow());
+         }
+      }
+   }
+
+   public static EventScheduler createScheduler()
+   {
+      EventScheduler scheduler = useTimingWheel ?
+         new EventScheduler(timeScale, new TimingWheelEventQueue()) :
+         new EventScheduler(timeScale);
+
+      if (useParallelTicks)
+      {
+         scheduler.setParallelPool(ForkJoinPool.commonPool());
       }
+      scheduler.setTickBudget(tickEventBudget, tickMillisBudget);
+      scheduler.setBacklogPolicy(backlogPolicy);
+
+      return scheduler;
    }
 
    public static Background createDefaultBackground(ImageStore imageStore)
@@ -143,12 +211,12 @@ public final class VirtualWorld
    {
       try
       {
-         Scanner in = new Scanner(new File(filename));
-         Functions.load(in, world, imageStore);
+         WorldLoader.load(Paths.get(filename), world, imageStore);
+         world.compactBackground();
       }
-      catch (FileNotFoundException e)
+      catch (IOException e)
       {
-         System.err.println(e.getMessage());
+         System.err.println(e.toString());
       }
    }
 
@@ -163,9 +231,9 @@ public final class VirtualWorld
 
    public static void parseCommandLine(String [] args)
    {
-      for (String arg : args)
+      for (int i = 0; i < args.length; i++)
       {
-         switch (arg)
+         switch (args[i])
          {
             case FAST_FLAG:
                timeScale = Math.min(FAST_SCALE, timeScale);
@@ -176,10 +244,46 @@ public final class VirtualWorld
             case FASTEST_FLAG:
                timeScale = Math.min(FASTEST_SCALE, timeScale);
                break;
+            case TIMING_WHEEL_FLAG:
+               useTimingWheel = true;
+               break;
+            case PARALLEL_FLAG:
+               useParallelTicks = true;
+               break;
+            case ENTITY_STORE_FLAG:
+               useEntityStore = true;
+               break;
+            case THREADED_FLAG:
+               useSimulationThread = true;
+               break;
+            case COLS_FLAG:
+               worldCols = Integer.parseInt(args[++i]);
+               break;
+            case ROWS_FLAG:
+               worldRows = Integer.parseInt(args[++i]);
+               break;
+            case BUDGET_FLAG:
+               tickEventBudget = Integer.parseInt(args[++i]);
+               break;
+            case BUDGET_MILLIS_FLAG:
+               tickMillisBudget = Long.parseLong(args[++i]);
+               break;
+            case BEHIND_FLAG:
+               backlogPolicy = parseBacklogPolicy(args[++i]);
+               break;
          }
       }
    }
 
+   /*
+      Accepts the policy names in any case, with hyphens for underscores,
+      as in "skip-animation".
+   */
+   public static BacklogPolicy parseBacklogPolicy(String name)
+   {
+      return BacklogPolicy.valueOf(name.toUpperCase().replace('-', '_'));
+   }
+
    public static void main(String [] args)
    {
       parseCommandLine(args);
@@ -0,0 +1,29 @@
+/*
+   Per-cell storage behind WorldModel: the background and occupant of each
+   cell, plus the shared Point for it.  Coordinates are assumed to have
+   been bounds-checked by the caller.
+*/
+interface WorldGrid
+{
+   Background getBackground(int x, int y);
+
+   void setBackground(int x, int y, Background background);
+
+   /*
+      End (exclusive) of the run of cells in row y, starting at x, that
+      share x's background, but no further than limit.
+   */
+   int getBackgroundRunEnd(int x, int y, int limit);
+
+   /*
+      Hint that background writes are done for now, so storage can be
+      packed more tightly.
+   */
+   void compactBackground();
+
+   Entity getOccupant(int x, int y);
+
+   void setOccupant(int x, int y, Entity entity);
+
+   Point pointAt(int x, int y);
+}
@@ -0,0 +1,436 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/*
+   Loads a save file without going through Scanner and String.split.  The
+   file is cut into chunks at line boundaries and each chunk is memory
+   mapped and tokenized in place, in parallel, into a batch of parsed
+   entries.  The batches are then applied to the world in file order, so
+   entries are added and errors reported in the order of the lines.
+
+   Tokens are split on single whitespace characters, as split("\\s") did,
+   so a doubled space still makes an entry invalid.
+*/
+final class WorldLoader
+{
+   private static final int CHUNK_BYTES = 4 << 20;
+   private static final int BOUNDARY_SCAN_BYTES = 4096;
+
+   private static final byte[] BGND_KEY = key("background");
+   private static final byte[] MINER_KEY = key(Entity.MINER_KEY);
+   private static final byte[] OBSTACLE_KEY = key(Entity.OBSTACLE_KEY);
+   private static final byte[] ORE_KEY = key(Entity.ORE_KEY);
+   private static final byte[] SMITH_KEY = key(Entity.SMITH_KEY);
+   private static final byte[] VEIN_KEY = key(Entity.VEIN_KEY);
+
+   /* entry kinds; INVALID entries only carry their line number */
+   private static final byte INVALID = 0;
+   private static final byte BACKGROUND = 1;
+   private static final byte MINER = 2;
+   private static final byte OBSTACLE = 3;
+   private static final byte ORE = 4;
+   private static final byte SMITH = 5;
+   private static final byte VEIN = 6;
+
+   /* ints stored per entry: line, col, row and up to three values */
+   private static final int STRIDE = 6;
+   private static final int MAX_TOKENS = 8;
+
+   /*
+      Parsed entries of one chunk.  Line numbers are relative to the
+      chunk until the batches are merged.
+   */
+   private static final class Batch
+   {
+      int size;
+      int lines;
+      byte[] kinds = new byte[64];
+      int[] values = new int[64 * STRIDE];
+      String[] ids = new String[64];
+
+      void add(byte kind, int line, String id, int[] fields, int count)
+      {
+         if (this.size == this.kinds.length)
+         {
+            int capacity = this.size * 2;
+            this.kinds = Arrays.copyOf(this.kinds, capacity);
+            this.values = Arrays.copyOf(this.values,
+               capacity * STRIDE);
+            this.ids = Arrays.copyOf(this.ids, capacity);
+         }
+
+         int base = this.size * STRIDE;
+         this.kinds[this.size] = kind;
+         this.values[base] = line;
+         for (int i = 0; i < count; i++)
+         {
+            this.values[base + 1 + i] = fields[i];
+         }
+         this.ids[this.size] = id;
+         this.size++;
+      }
+   }
+
+   private WorldLoader()
+   {
+   }
+
+   public static void load(Path file, WorldModel world, ImageStore imageStore)
+      throws IOException
+   {
+      try (FileChannel channel = FileChannel.open(file,
+         StandardOpenOption.READ))
+      {
+         long[] bounds = chunkBounds(channel);
+         List<Batch> batches;
+         try
+         {
+            batches = IntStream.range(0, bounds.length - 1)
+               .parallel()
+               .mapToObj(i -> parseChunk(channel, bounds[i], bounds[i + 1]))
+               .collect(Collectors.toList());
+         }
+         catch (UncheckedIOException e)
+         {
+            throw e.getCause();
+         }
+
+         int firstLine = 0;
+         for (Batch batch : batches)
+         {
+            apply(batch, firstLine, world, imageStore);
+            firstLine += batch.lines;
+         }
+      }
+   }
+
+   /*
+      Chunk start offsets, each just past a newline, followed by the file
+      size.
+   */
+   private static long[] chunkBounds(FileChannel channel) throws IOException
+   {
+      long size = channel.size();
+      List<Long> starts = new ArrayList<>();
+      starts.add(0L);
+
+      ByteBuffer scan = ByteBuffer.allocate(BOUNDARY_SCAN_BYTES);
+      long pos = CHUNK_BYTES;
+      while (pos < size)
+      {
+         long lineStart = -1;
+         while (lineStart < 0 && pos < size)
+         {
+            scan.clear();
+            int read = channel.read(scan, pos);
+            for (int i = 0; i < read; i++)
+            {
+               if (scan.get(i) == '\n')
+               {
+                  lineStart = pos + i + 1;
+                  break;
+               }
+            }
+            pos += Math.max(read, 0);
+         }
+
+         if (lineStart < 0 || lineStart >= size)
+         {
+            break;
+         }
+         starts.add(lineStart);
+         pos = lineStart + CHUNK_BYTES;
+      }
+
+      long[] bounds = new long[starts.size() + 1];
+      for (int i = 0; i < starts.size(); i++)
+      {
+         bounds[i] = starts.get(i);
+      }
+      bounds[starts.size()] = size;
+      return bounds;
+   }
+
+   private static Batch parseChunk(FileChannel channel, long start, long end)
+   {
+      ByteBuffer buf;
+      try
+      {
+         buf = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+      }
+      catch (IOException e)
+      {
+         throw new UncheckedIOException(e);
+      }
+
+      Batch batch = new Batch();
+      int[] tokenStart = new int[MAX_TOKENS];
+      int[] tokenEnd = new int[MAX_TOKENS];
+      int[] fields = new int[STRIDE - 1];
+      String lastId = null;
+      int limit = buf.limit();
+      int pos = 0;
+
+      while (pos < limit)
+      {
+         int lineEnd = pos;
+         while (lineEnd < limit && buf.get(lineEnd) != '\n')
+         {
+            lineEnd++;
+         }
+         int next = lineEnd + 1;
+         if (lineEnd > pos && buf.get(lineEnd - 1) == '\r')
+         {
+            lineEnd--;
+         }
+
+         int count = tokenize(buf, pos, lineEnd, tokenStart, tokenEnd);
+         byte kind = classify(buf, tokenStart[0], tokenEnd[0], count);
+         int line = batch.lines++;
+
+         if (kind == INVALID)
+         {
+            batch.add(INVALID, line, null, fields, 0);
+         }
+         else
+         {
+            try
+            {
+               for (int i = 2; i < count; i++)
+               {
+                  fields[i - 2] = parseInt(buf, tokenStart[i], tokenEnd[i]);
+               }
+
+               /* ids often repeat line after line, backgrounds especially */
+               if (lastId == null || !sameBytes(buf, tokenStart[1],
+                  tokenEnd[1], lastId))
+               {
+                  lastId = decode(buf, tokenStart[1], tokenEnd[1]);
+               }
+               batch.add(kind, line, lastId, fields, count - 2);
+            }
+            catch (NumberFormatException e)
+            {
+               batch.add(INVALID, line, null, fields, 0);
+            }
+         }
+
+         pos = next;
+      }
+
+      return batch;
+   }
+
+   /*
+      Splits [start, end) on each whitespace byte.  Returns the number of
+      tokens, dropping trailing empty ones as String.split does; a count
+      above MAX_TOKENS means "too many" and only the first few are kept.
+   */
+   private static int tokenize(ByteBuffer buf, int start, int end,
+      int[] tokenStart, int[] tokenEnd)
+   {
+      int count = 0;
+      int nonEmpty = 0;
+      int tokenBegin = start;
+      for (int i = start; i <= end; i++)
+      {
+         if (i == end || isWhitespace(buf.get(i)))
+         {
+            if (count < MAX_TOKENS)
+            {
+               tokenStart[count] = tokenBegin;
+               tokenEnd[count] = i;
+            }
+            count++;
+            if (i > tokenBegin)
+            {
+               nonEmpty = count;
+            }
+            tokenBegin = i + 1;
+         }
+      }
+
+      /* an all-empty line splits to a single empty string */
+      return Math.max(1, nonEmpty);
+   }
+
+   private static byte classify(ByteBuffer buf, int start, int end, int count)
+   {
+      if (matches(buf, start, end, BGND_KEY))
+      {
+         return count == 4 ? BACKGROUND : INVALID;
+      }
+      if (matches(buf, start, end, MINER_KEY))
+      {
+         return count == 7 ? MINER : INVALID;
+      }
+      if (matches(buf, start, end, OBSTACLE_KEY))
+      {
+         return count == 4 ? OBSTACLE : INVALID;
+      }
+      if (matches(buf, start, end, ORE_KEY))
+      {
+         return count == 5 ? ORE : INVALID;
+      }
+      if (matches(buf, start, end, SMITH_KEY))
+      {
+         return count == 4 ? SMITH : INVALID;
+      }
+      if (matches(buf, start, end, VEIN_KEY))
+      {
+         return count == 5 ? VEIN : INVALID;
+      }
+      return INVALID;
+   }
+
+   private static void apply(Batch batch, int firstLine, WorldModel world,
+      ImageStore imageStore)
+   {
+      for (int i = 0; i < batch.size; i++)
+      {
+         int base = i * STRIDE;
+         int[] v = batch.values;
+         int lineNumber = firstLine + v[base];
+         String id = batch.ids[i];
+
+         try
+         {
+            switch (batch.kinds[i])
+            {
+            case BACKGROUND:
+               world.loadBackground(id, v[base + 1], v[base + 2], imageStore);
+               break;
+            case MINER:
+               world.loadMiner(id, v[base + 1], v[base + 2], v[base + 3],
+                  v[base + 4], v[base + 5], imageStore);
+               break;
+            case OBSTACLE:
+               world.loadObstacle(id, v[base + 1], v[base + 2], imageStore);
+               break;
+            case ORE:
+               world.loadOre(id, v[base + 1], v[base + 2], v[base + 3],
+                  imageStore);
+               break;
+            case SMITH:
+               world.loadSmith(id, v[base + 1], v[base + 2], imageStore);
+               break;
+            case VEIN:
+               world.loadVein(id, v[base + 1], v[base + 2], v[base + 3],
+                  imageStore);
+               break;
+            default:
+               System.err.println(String.format("invalid entry on line %d",
+                  lineNumber));
+            }
+         }
+         catch (IllegalArgumentException e)
+         {
+            System.err.println(String.format("issue on line %d: %s",
+               lineNumber, e.getMessage()));
+         }
+      }
+   }
+
+   /*
+      Same rules as Integer.parseInt: an optional sign, at least one
+      decimal digit, and no overflow.
+   */
+   private static int parseInt(ByteBuffer buf, int start, int end)
+   {
+      int i = start;
+      boolean negative = false;
+      if (i < end && (buf.get(i) == '-' || buf.get(i) == '+'))
+      {
+         negative = buf.get(i) == '-';
+         i++;
+      }
+      if (i == end)
+      {
+         throw new NumberFormatException();
+      }
+
+      /* accumulate negatively so that Integer.MIN_VALUE fits */
+      long limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+      long result = 0;
+      for (; i < end; i++)
+      {
+         int digit = buf.get(i) - '0';
+         if (digit < 0 || digit > 9)
+         {
+            throw new NumberFormatException();
+         }
+         result = result * 10 - digit;
+         if (result < limit)
+         {
+            throw new NumberFormatException();
+         }
+      }
+      return (int)(negative ? result : -result);
+   }
+
+   private static boolean isWhitespace(byte b)
+   {
+      return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' ||
+         b == '\r';
+   }
+
+   private static boolean matches(ByteBuffer buf, int start, int end,
+      byte[] key)
+   {
+      if (end - start != key.length)
+      {
+         return false;
+      }
+      for (int i = 0; i < key.length; i++)
+      {
+         if (buf.get(start + i) != key[i])
+         {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private static boolean sameBytes(ByteBuffer buf, int start, int end,
+      String id)
+   {
+      if (end - start != id.length())
+      {
+         return false;
+      }
+      for (int i = 0; i < id.length(); i++)
+      {
+         /* only plain ASCII ids are compared byte for char */
+         if (id.charAt(i) >= 0x80 || buf.get(start + i) != id.charAt(i))
+         {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private static String decode(ByteBuffer buf, int start, int end)
+   {
+      byte[] bytes = new byte[end - start];
+      for (int i = 0; i < bytes.length; i++)
+      {
+         bytes[i] = buf.get(start + i);
+      }
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+
+   private static byte[] key(String key)
+   {
+      return key.getBytes(StandardCharsets.UTF_8);
+   }
+}
@@ -1,7 +1,10 @@
 import processing.core.PImage;
 
-import java.util.Arrays;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 
@@ -9,47 +12,120 @@ final class WorldModel
 {
    private int numRows;
    private int numCols;
-   private Background background[][];
-   private Entity occupancy[][];
+   private WorldGrid grid;
    private Set<Entity> entities;
+   private Map<EntityKind, SpatialIndex> kindIndex;
+   private PathFinder pathFinder;
+   private Map<EntityKind, DistanceLayer> distanceLayers;
+   private EntityStore entityStore;
+   private DirtyJournal journal;
+   private List<CellListener> cellListeners;
    private static Point position;
 
-   private static final int MINER_NUM_PROPERTIES = 7;
-   private static final int MINER_ID = 1;
-   private static final int MINER_COL = 2;
-   private static final int MINER_ROW = 3;
-   private static final int MINER_LIMIT = 4;
-   private static final int MINER_ACTION_PERIOD = 5;
-   private static final int MINER_ANIMATION_PERIOD = 6;
-   private static final int OBSTACLE_NUM_PROPERTIES = 4;
-   private static final int OBSTACLE_ID = 1;
-   private static final int OBSTACLE_COL = 2;
-   private static final int OBSTACLE_ROW = 3;
-   private static final int ORE_NUM_PROPERTIES = 5;
-   private static final int ORE_ID = 1;
-   private static final int ORE_COL = 2;
-   private static final int ORE_ROW = 3;
-   private static final int ORE_ACTION_PERIOD = 4;
-   private static final int SMITH_NUM_PROPERTIES = 4;
-   private static final int SMITH_ID = 1;
-   private static final int SMITH_COL = 2;
-   private static final int SMITH_ROW = 3;
-   private static final int VEIN_NUM_PROPERTIES = 5;
-   private static final int VEIN_ID = 1;
-   private static final int VEIN_COL = 2;
-   private static final int VEIN_ROW = 3;
-   private static final int VEIN_ACTION_PERIOD = 4;
-
-   private static final int BGND_NUM_PROPERTIES = 4;
-   private static final int BGND_ID = 1;
-   private static final int BGND_COL = 2;
-   private static final int BGND_ROW = 3;
+   /* beyond this many cells the grid is chunked, and per-cell layers that
+      span the whole world are not kept */
+   public static final long DENSE_CELL_LIMIT = 1L << 22;
 
    public Set<Entity> getEntities()
    {
       return entities;
    }
 
+   /*
+      Null unless enableEntityStore has been called.
+   */
+   public EntityStore getEntityStore()
+   {
+      return entityStore;
+   }
+
+   /*
+      Moves entity state into struct-of-arrays columns so that whole-world
+      sweeps are linear scans over primitive arrays.
+   */
+   public void enableEntityStore()
+   {
+      if (this.entityStore == null)
+      {
+         this.entityStore = new EntityStore();
+         for (Entity entity : this.entities)
+         {
+            entity.attach(this.entityStore);
+         }
+      }
+   }
+
+   /*
+      Null unless enableJournal has been called.
+   */
+   public DirtyJournal getJournal()
+   {
+      return journal;
+   }
+
+   /*
+      Starts recording which cells change, for incremental checkpoints.
+   */
+   public void enableJournal()
+   {
+      if (this.journal == null)
+      {
+         this.journal = new DirtyJournal();
+      }
+   }
+
+   /*
+      Records an in-place change to an entity's state, one that does not
+      go through the grid.
+   */
+   public void entityChanged(Entity entity)
+   {
+      markDirty(entity.position);
+   }
+
+   /*
+      Records that an entity now shows a different image.  Only listeners
+      hear about it; animation frames are not journaled.
+   */
+   public void imageChanged(Entity entity)
+   {
+      if (withinBounds(entity.position))
+      {
+         for (CellListener listener : this.cellListeners)
+         {
+            listener.cellChanged(entity.position.getX(),
+               entity.position.getY());
+         }
+      }
+   }
+
+   public void addCellListener(CellListener listener)
+   {
+      this.cellListeners.add(listener);
+   }
+
+   private void markDirty(Point pos)
+   {
+      if (!withinBounds(pos))
+      {
+         return;
+      }
+
+      if (this.journal != null)
+      {
+         this.journal.markCell(pos.getX(), pos.getY());
+      }
+      for (CellListener listener : this.cellListeners)
+      {
+         listener.cellChanged(pos.getX(), pos.getY());
+      }
+   }
+
+   public PathFinder getPathFinder()
+   {
+      return pathFinder;
+   }
+
    public int getNumRows(){
       return numRows;
    }
@@ -63,17 +139,61 @@ final class WorldModel
    }
 
     public WorldModel(int numRows, int numCols, Background defaultBackground)
+   {
+      this(numRows, numCols, defaultBackground,
+         (long)numRows * numCols > DENSE_CELL_LIMIT);
+   }
+
+   public WorldModel(int numRows, int numCols, Background defaultBackground,
+      boolean chunked)
    {
       this.numRows = numRows;
       this.numCols = numCols;
-      this.background = new Background[numRows][numCols];
-      this.occupancy = new Entity[numRows][numCols];
-      this.entities = new HashSet<>();
+      this.grid = chunked ?
+         new ChunkedGrid(numRows, numCols, defaultBackground) :
+         new DenseGrid(numRows, numCols, defaultBackground);
+      /* insertion ordered so that scheduling from it is reproducible */
+      this.entities = new LinkedHashSet<>();
+      this.kindIndex = new EnumMap<>(EntityKind.class);
+      this.cellListeners = new ArrayList<>();
+      this.pathFinder = new PathFinder(this);
+      this.distanceLayers = new EnumMap<>(EntityKind.class);
+      if (!isLarge())
+      {
+         this.distanceLayers.put(EntityKind.BLACKSMITH,
+            new DistanceLayer(this, EntityKind.BLACKSMITH));
+         this.distanceLayers.put(EntityKind.VEIN,
+            new DistanceLayer(this, EntityKind.VEIN));
+      }
+   }
 
-      for (int row = 0; row < numRows; row++)
+   /*
+      True when the world is too big for structures with an entry per
+      cell; callers fall back to local searches instead.
+   */
+   public boolean isLarge()
+   {
+      return (long)this.numRows * this.numCols > DENSE_CELL_LIMIT;
+   }
+
+   public WorldGrid getGrid()
+   {
+      return grid;
+   }
+
+   /*
+      Returns the shared Point for an in-bounds cell, creating it on first
+      use, so steady-state movement allocates no coordinates.  Points off
+      the grid are not cached.
+   */
+   public Point pointAt(int x, int y)
+   {
+      if (!withinBounds(x, y))
       {
-         Arrays.fill(this.background[row], defaultBackground);
+         return new Point(x, y);
       }
+
+      return this.grid.pointAt(x, y);
    }
 
     public Optional<Entity> getOccupant(Point pos)
@@ -100,122 +220,106 @@ final class WorldModel
        addEntity(entity);
     }
 
-    public boolean parseVein(String[] properties,
-                            ImageStore imageStore)
+   /*
+      The load* methods add one save file entry already tokenized by
+      WorldLoader.
+   */
+   public void loadVein(String id, int col, int row, int actionPeriod,
+      ImageStore imageStore)
    {
-      if (properties.length == VEIN_NUM_PROPERTIES)
-      {
-         Point pt = new Point(Integer.parseInt(properties[VEIN_COL]),
-            Integer.parseInt(properties[VEIN_ROW]));
-         Entity entity = pt.createVein(properties[VEIN_ID],
-                 Integer.parseInt(properties[VEIN_ACTION_PERIOD]),
-            Functions.getImageList(imageStore, Entity.VEIN_KEY));
-         this.tryAddEntity(entity);
-      }
-
-      return properties.length == VEIN_NUM_PROPERTIES;
+      Entity entity = this.pointAt(col, row).createVein(id, actionPeriod,
+         Functions.getImageList(imageStore, Entity.VEIN_KEY));
+      this.tryAddEntity(entity);
    }
 
    public void setBackgroundCell(Point pos,
                                  Background background)
    {
-      this.background[pos.getY()][pos.getX()] = background;
+      this.grid.setBackground(pos.getX(), pos.getY(), background);
+      markDirty(pos);
    }
 
-   public boolean parseSmith(String[] properties,
-                             ImageStore imageStore)
+   public void loadSmith(String id, int col, int row, ImageStore imageStore)
    {
-      if (properties.length == SMITH_NUM_PROPERTIES)
-      {
-         Point pt = new Point(Integer.parseInt(properties[SMITH_COL]),
-            Integer.parseInt(properties[SMITH_ROW]));
-         Entity entity = Entity.createBlacksmith(pt, properties[SMITH_ID],
-                 Functions.getImageList(imageStore, Entity.SMITH_KEY));
-         this.tryAddEntity(entity);
-      }
-
-      return properties.length == SMITH_NUM_PROPERTIES;
+      Entity entity = this.pointAt(col, row).createBlacksmith(id,
+         Functions.getImageList(imageStore, Entity.SMITH_KEY));
+      this.tryAddEntity(entity);
    }
 
-   public boolean parseOre(String[] properties,
-                           ImageStore imageStore)
+   public void loadOre(String id, int col, int row, int actionPeriod,
+      ImageStore imageStore)
    {
-      if (properties.length == ORE_NUM_PROPERTIES)
-      {
-         Point pt = new Point(Integer.parseInt(properties[ORE_COL]),
-            Integer.parseInt(properties[ORE_ROW]));
-         Entity entity = pt.createOre(properties[ORE_ID],
-                 Integer.parseInt(properties[ORE_ACTION_PERIOD]),
-            Functions.getImageList(imageStore, Entity.ORE_KEY));
-         this.tryAddEntity(entity);
-      }
-
-      return properties.length == ORE_NUM_PROPERTIES;
+      Entity entity = this.pointAt(col, row).createOre(id, actionPeriod,
+         Functions.getImageList(imageStore, Entity.ORE_KEY));
+      this.tryAddEntity(entity);
    }
 
-   public boolean parseObstacle(String[] properties,
-                                ImageStore imageStore)
+   public void loadObstacle(String id, int col, int row,
+      ImageStore imageStore)
    {
-      if (properties.length == OBSTACLE_NUM_PROPERTIES)
-      {
-         Point pt = new Point(
-            Integer.parseInt(properties[OBSTACLE_COL]),
-            Integer.parseInt(properties[OBSTACLE_ROW]));
-         Entity entity = pt.createObstacle(properties[OBSTACLE_ID],
-                 Functions.getImageList(imageStore, Entity.OBSTACLE_KEY));
-         this.tryAddEntity(entity);
-      }
+      Entity entity = this.pointAt(col, row).createObstacle(id,
+         Functions.getImageList(imageStore, Entity.OBSTACLE_KEY));
+      this.tryAddEntity(entity);
+   }
 
-      return properties.length == OBSTACLE_NUM_PROPERTIES;
+   public void loadMiner(String id, int col, int row, int resourceLimit,
+      int actionPeriod, int animationPeriod, ImageStore imageStore)
+   {
+      Entity entity = this.pointAt(col, row).createMinerNotFull(id,
+         resourceLimit, actionPeriod, animationPeriod,
+         Functions.getImageList(imageStore, Entity.MINER_KEY));
+      this.tryAddEntity(entity);
    }
 
-   public boolean parseMiner(String[] properties,
-                             ImageStore imageStore)
+   public void loadBackground(String id, int col, int row,
+      ImageStore imageStore)
    {
-      if (properties.length == MINER_NUM_PROPERTIES)
-      {
-         Point pt = new Point(Integer.parseInt(properties[MINER_COL]),
-            Integer.parseInt(properties[MINER_ROW]));
-         Entity entity = pt.createMinerNotFull(properties[MINER_ID],
-            Integer.parseInt(properties[MINER_LIMIT]),
-                 Integer.parseInt(properties[MINER_ACTION_PERIOD]),
-            Integer.parseInt(properties[MINER_ANIMATION_PERIOD]),
-            Functions.getImageList(imageStore, Entity.MINER_KEY));
-         this.tryAddEntity(entity);
-      }
+      setBackground(this.pointAt(col, row),
+         new Background(id, Functions.getImageList(imageStore, id)));
+   }
 
-      return properties.length == MINER_NUM_PROPERTIES;
+   public Background getBackgroundCell(Point pos)
+   {
+      return this.grid.getBackground(pos.getX(), pos.getY());
    }
 
-   public boolean parseBackground(String[] properties,
-                                  ImageStore imageStore)
+   public Background getBackgroundCell(int x, int y)
    {
-      if (properties.length == BGND_NUM_PROPERTIES)
-      {
-         Point pt = new Point(Integer.parseInt(properties[BGND_COL]),
-            Integer.parseInt(properties[BGND_ROW]));
-         String id = properties[BGND_ID];
-         setBackground(pt,
-            new Background(id, Functions.getImageList(imageStore, id)));
-      }
+      return this.grid.getBackground(x, y);
+   }
 
-      return properties.length == BGND_NUM_PROPERTIES;
+   /*
+      End (exclusive) of the run of cells from (x, y) along the row that
+      share its background, capped at limit.
+   */
+   public int getBackgroundRunEnd(int x, int y, int limit)
+   {
+      return this.grid.getBackgroundRunEnd(x, y,
+         Math.min(limit, this.numCols));
    }
 
-   public Background getBackgroundCell(Point pos)
+   public void compactBackground()
    {
-      return this.background[pos.getY()][pos.getX()];
+      this.grid.compactBackground();
    }
 
    public void setOccupancyCell(Point pos,
                                 Entity entity)
    {
-      this.occupancy[pos.getY()][pos.getX()] = entity;
+      Entity before = this.grid.getOccupant(pos.getX(), pos.getY());
+      this.grid.setOccupant(pos.getX(), pos.getY(), entity);
+      this.pathFinder.cellChanged(pos, before, entity);
+      markDirty(pos);
    }
 
    public Entity getOccupancyCell(Point pos)
    {
-      return this.occupancy[pos.getY()][pos.getX()];
+      return this.grid.getOccupant(pos.getX(), pos.getY());
+   }
+
+   public Entity getOccupancyCell(int x, int y)
+   {
+      return this.grid.getOccupant(x, y);
    }
 
    public void setBackground(Point pos,
@@ -248,9 +352,13 @@ final class WorldModel
 
          /* this moves the entity just outside of the grid for
             debugging purposes */
-         entity.position = new Point(-1, -1);
+         entity.position = Point.OFF_GRID;
          this.entities.remove(entity);
+         this.getKindIndex(entity.getKind()).remove(entity, pos);
+         this.pathFinder.forget(entity);
+         entity.detach();
          this.setOccupancyCell(pos, null);
+         this.updateDistanceLayers(entity, pos, false);
       }
    }
 
@@ -268,19 +376,33 @@ final class WorldModel
          this.removeEntityAt(pos);
          this.setOccupancyCell(pos, entity);
          entity.position = pos;
+         this.getKindIndex(entity.getKind()).move(entity, oldPos, pos);
+         if (this.entityStore != null)
+         {
+            this.entityStore.setPosition(entity.getStoreId(), pos.getX(),
+               pos.getY());
+         }
       }
    }
 
    public boolean withinBounds(Point pos)
    {
-      return pos.getY() >= 0 && pos.getY() < this.numRows &&
-         pos.getX() >= 0 && pos.getX() < this.numCols;
+      return withinBounds(pos.getX(), pos.getY());
+   }
+
+   public boolean withinBounds(int x, int y)
+   {
+      return y >= 0 && y < this.numRows && x >= 0 && x < this.numCols;
    }
 
    public boolean isOccupied(Point pos)
    {
-      return this.withinBounds(pos) &&
-         this.getOccupancyCell(pos) != null;
+      return isOccupied(pos.getX(), pos.getY());
+   }
+
+   public boolean isOccupied(int x, int y)
+   {
+      return this.withinBounds(x, y) && this.grid.getOccupant(x, y) != null;
    }
 
    /*
@@ -293,6 +415,124 @@ final class WorldModel
       {
          this.setOccupancyCell(entity.position, entity);
          this.entities.add(entity);
+         this.getKindIndex(entity.getKind()).add(entity, entity.position);
+         if (this.entityStore != null)
+         {
+            entity.attach(this.entityStore);
+         }
+         this.updateDistanceLayers(entity, entity.position, true);
+      }
+   }
+
+   /*
+      Static entities are targets for their own kind's layer and walls
+      for every other layer.
+   */
+   private void updateDistanceLayers(Entity entity, Point pos, boolean added)
+   {
+      if (!PathFinder.isStaticKind(entity.getKind()))
+      {
+         return;
+      }
+
+      for (DistanceLayer layer : this.distanceLayers.values())
+      {
+         if (layer.getKind() == entity.getKind())
+         {
+            if (added)
+            {
+               layer.sourceAdded(pos);
+            }
+            else
+            {
+               layer.sourceRemoved(pos);
+            }
+         }
+         else if (added)
+         {
+            layer.blockerAdded(pos);
+         }
+         else
+         {
+            layer.blockerRemoved(pos);
+         }
+      }
+   }
+
+   /*
+      Nearest entity of the given kind by path distance where a distance
+      layer is kept for that kind, falling back to straight-line distance
+      when there is no layer or nothing can be reached.
+   */
+   public Optional<Entity> findNearestReachable(Point pos, EntityKind kind)
+   {
+      DistanceLayer layer = this.distanceLayers.get(kind);
+      if (layer != null)
+      {
+         Optional<Entity> nearest = layer.getNearestSource(pos);
+         if (nearest.isPresent())
+         {
+            return nearest;
+         }
+      }
+
+      return findNearest(pos, kind);
+   }
+
+   /*
+      Next step from pos toward the nearest entity of the given kind along
+      its distance layer, or a greedy step toward dest if that kind has no
+      layer or pos cannot reach one.
+   */
+   public Point nextStepToward(EntityKind kind, Point pos, Point dest,
+      CellPredicate free)
+   {
+      DistanceLayer layer = this.distanceLayers.get(kind);
+      if (layer == null || layer.getDistance(pos) == DistanceLayer.UNREACHABLE)
+      {
+         return PathFinder.greedyStep(this, pos, dest, free);
+      }
+
+      return layer.nextStep(pos, free);
+   }
+
+   /*
+      Changes an entity's kind in place, keeping its cell and identity.
+   */
+   public void changeKind(Entity entity, EntityKind kind)
+   {
+      if (this.entities.contains(entity))
+      {
+         this.getKindIndex(entity.getKind()).remove(entity, entity.position);
+         entity.setKind(kind);
+         this.getKindIndex(kind).add(entity, entity.position);
+         markDirty(entity.position);
+      }
+      else
+      {
+         entity.setKind(kind);
+      }
+   }
+
+   public Optional<Entity> findNearest(Point pos, EntityKind kind)
+   {
+      SpatialIndex index = this.kindIndex.get(kind);
+      if (index == null)
+      {
+         return Optional.empty();
+      }
+
+      return index.findNearest(pos);
+   }
+
+   private SpatialIndex getKindIndex(EntityKind kind)
+   {
+      SpatialIndex index = this.kindIndex.get(kind);
+      if (index == null)
+      {
+         index = new SpatialIndex(this.numRows, this.numCols);
+         this.kindIndex.put(kind, index);
       }
+      return index;
    }
 }
@@ -0,0 +1,424 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/*
+   Binary checkpoint of a running world: the background palette and its
+   cells, every entity with its live state, and the scheduler's pending
+   events with due times relative to the scheduler's clock.  Writing is a
+   single sequential pass through a buffer drained into a FileChannel;
+   reading maps the file and walks it once.
+
+   Layout, all big-endian:
+
+      int magic, int version, int rows, int cols
+      int paletteSize, paletteSize * string id
+      per row: int runCount, runCount * (int length, int paletteIndex)
+      int entityCount, entityCount * entity
+      int eventCount, eventCount * (int entity, byte kind, int repeat,
+         long delay)
+
+   An entity is byte kind, string id, int x, int y, int imageIndex,
+   int resourceLimit, int resourceCount, int actionPeriod,
+   int animationPeriod.  Strings are an int length followed by UTF-8.
+*/
+final class WorldSnapshot
+{
+   public static final int MAGIC = 0x56575331;
+   public static final int VERSION = 1;
+
+   private static final int BUFFER_SIZE = 1 << 20;
+   private static final EntityKind[] KINDS = EntityKind.values();
+   private static final ActionKind[] ACTION_KINDS = ActionKind.values();
+
+   private WorldSnapshot()
+   {
+   }
+
+   public static void write(Path file, WorldModel world,
+      EventScheduler scheduler) throws IOException
+   {
+      try (FileChannel channel = FileChannel.open(file,
+         StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+         StandardOpenOption.TRUNCATE_EXISTING))
+      {
+         Writer out = new Writer(channel);
+         write(out, world, scheduler);
+         out.flush();
+      }
+   }
+
+   static void write(Writer out, WorldModel world, EventScheduler scheduler)
+      throws IOException
+   {
+      out.putInt(MAGIC);
+      out.putInt(VERSION);
+      out.putInt(world.getNumRows());
+      out.putInt(world.getNumCols());
+      writeBackground(out, world);
+
+      Map<Entity, Integer> indices = new IdentityHashMap<>();
+      out.putInt(world.getEntities().size());
+      for (Entity entity : world.getEntities())
+      {
+         indices.put(entity, indices.size());
+         writeEntity(out, entity);
+      }
+
+      List<Event> events = collectEvents(world.getEntities(), world,
+         scheduler);
+      long now = scheduler.getClock().currentTimeMillis();
+      out.putInt(events.size());
+      for (Event event : events)
+      {
+         out.putInt(indices.get(event.getEntity()));
+         out.putByte((byte)event.getAction().getKind().ordinal());
+         out.putInt(event.getAction().getRepeatCount());
+         out.putLong(event.getTime() - now);
+      }
+   }
+
+   /*
+      Restores a snapshot into an empty world of the same size and an
+      empty scheduler.
+   */
+   public static void read(Path file, WorldModel world,
+      EventScheduler scheduler, ImageStore imageStore) throws IOException
+   {
+      try (FileChannel channel = FileChannel.open(file,
+         StandardOpenOption.READ))
+      {
+         ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+            channel.size());
+         read(in, world, scheduler, imageStore);
+      }
+   }
+
+   static void read(ByteBuffer in, WorldModel world,
+      EventScheduler scheduler, ImageStore imageStore) throws IOException
+   {
+      if (in.getInt() != MAGIC)
+      {
+         throw new IOException("not a world snapshot");
+      }
+      int version = in.getInt();
+      if (version != VERSION)
+      {
+         throw new IOException(String.format(
+            "unsupported snapshot version %d", version));
+      }
+      if (in.getInt() != world.getNumRows() ||
+         in.getInt() != world.getNumCols())
+      {
+         throw new IOException("snapshot size does not match world");
+      }
+      readBackground(in, world, imageStore);
+
+      Entity[] entities = new Entity[in.getInt()];
+      for (int i = 0; i < entities.length; i++)
+      {
+         entities[i] = readEntity(in, world, imageStore);
+         world.addEntity(entities[i]);
+      }
+
+      long now = scheduler.getClock().currentTimeMillis();
+      int eventCount = in.getInt();
+      for (int i = 0; i < eventCount; i++)
+      {
+         Entity entity = entities[in.getInt()];
+         ActionKind kind = ACTION_KINDS[in.get()];
+         restoreEvent(entity, kind, in.getInt(), now + in.getLong(), world,
+            scheduler, imageStore);
+      }
+   }
+
+   /*
+      Every pending event of the world's entities, in due order.
+   */
+   static List<Event> collectEvents(Collection<Entity> entities,
+      WorldModel world, EventScheduler scheduler)
+   {
+      List<Event> events = new ArrayList<>();
+      for (Entity entity : entities)
+      {
+         events.addAll(scheduler.getPendingEvents(entity));
+         Event animation = scheduler.getPendingAnimation(entity, world);
+         if (animation != null)
+         {
+            events.add(animation);
+         }
+      }
+      events.sort(new EventComparator());
+      return events;
+   }
+
+   /*
+      Reschedules a saved event.  Animations rejoin their period's group
+      in the Animator, so only their repeat count is kept.
+   */
+   static void restoreEvent(Entity entity, ActionKind kind, int repeatCount,
+      long time, WorldModel world, EventScheduler scheduler,
+      ImageStore imageStore)
+   {
+      if (kind == ActionKind.ANIMATION)
+      {
+         scheduler.scheduleAnimation(entity, world, repeatCount);
+      }
+      else
+      {
+         scheduler.scheduleEventAt(entity,
+            entity.createActivityAction(world, imageStore), time);
+      }
+   }
+
+   private static void writeBackground(Writer out, WorldModel world)
+      throws IOException
+   {
+      /* first pass over the runs finds the palette, the second writes
+         the cells against it */
+      Map<String, Integer> palette = new LinkedHashMap<>();
+      for (int y = 0; y < world.getNumRows(); y++)
+      {
+         for (int x = 0; x < world.getNumCols();
+            x = world.getBackgroundRunEnd(x, y, world.getNumCols()))
+         {
+            palette.putIfAbsent(world.getBackgroundCell(x, y).getId(),
+               palette.size());
+         }
+      }
+
+      out.putInt(palette.size());
+      for (String id : palette.keySet())
+      {
+         out.putString(id);
+      }
+
+      List<Integer> runs = new ArrayList<>();
+      for (int y = 0; y < world.getNumRows(); y++)
+      {
+         runs.clear();
+         int x = 0;
+         while (x < world.getNumCols())
+         {
+            int end = world.getBackgroundRunEnd(x, y, world.getNumCols());
+            int index = palette.get(world.getBackgroundCell(x, y).getId());
+
+            /* grids may split a run, at chunk edges for instance */
+            int last = runs.size() - 1;
+            if (last > 0 && runs.get(last) == index)
+            {
+               runs.set(last - 1, runs.get(last - 1) + end - x);
+            }
+            else
+            {
+               runs.add(end - x);
+               runs.add(index);
+            }
+            x = end;
+         }
+
+         out.putInt(runs.size() / 2);
+         for (int value : runs)
+         {
+            out.putInt(value);
+         }
+      }
+   }
+
+   private static void readBackground(ByteBuffer in, WorldModel world,
+      ImageStore imageStore)
+   {
+      Background[] palette = new Background[in.getInt()];
+      for (int i = 0; i < palette.length; i++)
+      {
+         String id = getString(in);
+         palette[i] = new Background(id,
+            Functions.getImageList(imageStore, id));
+      }
+
+      /* the world starts out all default, so default runs are skipped */
+      String defaultId = world.getBackgroundCell(0, 0).getId();
+      for (int y = 0; y < world.getNumRows(); y++)
+      {
+         int runCount = in.getInt();
+         int x = 0;
+         for (int run = 0; run < runCount; run++)
+         {
+            int end = x + in.getInt();
+            Background background = palette[in.getInt()];
+            if (background.getId().equals(defaultId))
+            {
+               x = end;
+               continue;
+            }
+            for (; x < end; x++)
+            {
+               world.setBackground(world.pointAt(x, y), background);
+            }
+         }
+      }
+      world.compactBackground();
+   }
+
+   static void writeEntity(Writer out, Entity entity)
+      throws IOException
+   {
+      out.putByte((byte)entity.getKind().ordinal());
+      out.putString(entity.getId());
+      out.putInt(entity.position.getX());
+      out.putInt(entity.position.getY());
+      out.putInt(entity.getImageIndex());
+      out.putInt(entity.getResourceLimit());
+      out.putInt(entity.getResourceCount());
+      out.putInt(entity.getActionPeriod());
+      out.putInt(isAnimated(entity.getKind()) ?
+         entity.getAnimationPeriod() : 0);
+   }
+
+   static Entity readEntity(ByteBuffer in, WorldModel world,
+      ImageStore imageStore)
+   {
+      EntityKind kind = KINDS[in.get()];
+      String id = getString(in);
+      Point pos = world.pointAt(in.getInt(), in.getInt());
+      int imageIndex = in.getInt();
+      int resourceLimit = in.getInt();
+      int resourceCount = in.getInt();
+      int actionPeriod = in.getInt();
+      int animationPeriod = in.getInt();
+
+      Entity entity = new Entity(kind, id, pos,
+         Functions.getImageList(imageStore, imageKey(kind)), resourceLimit,
+         resourceCount, actionPeriod, animationPeriod);
+      entity.setImageIndex(imageIndex);
+      return entity;
+   }
+
+   private static boolean isAnimated(EntityKind kind)
+   {
+      return kind == EntityKind.MINER_FULL ||
+         kind == EntityKind.MINER_NOT_FULL || kind == EntityKind.ORE_BLOB ||
+         kind == EntityKind.QUAKE;
+   }
+
+   private static String imageKey(EntityKind kind)
+   {
+      switch (kind)
+      {
+      case BLACKSMITH:
+         return Entity.SMITH_KEY;
+      case MINER_FULL:
+      case MINER_NOT_FULL:
+         return Entity.MINER_KEY;
+      case OBSTACLE:
+         return Entity.OBSTACLE_KEY;
+      case ORE:
+         return Entity.ORE_KEY;
+      case ORE_BLOB:
+         return Entity.BLOB_KEY;
+      case QUAKE:
+         return Entity.QUAKE_KEY;
+      case VEIN:
+         return Entity.VEIN_KEY;
+      default:
+         throw new UnsupportedOperationException(
+            String.format("imageKey not supported for %s", kind));
+      }
+   }
+
+   static String getString(ByteBuffer in)
+   {
+      byte[] bytes = new byte[in.getInt()];
+      in.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+
+   /*
+      Buffered sequential writer over a channel.
+   */
+   static final class Writer
+   {
+      private final FileChannel channel;
+      private final ByteBuffer buffer;
+      private CRC32 checksum;
+
+      Writer(FileChannel channel)
+      {
+         this.channel = channel;
+         this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+      }
+
+      void putByte(byte value) throws IOException
+      {
+         ensure(1);
+         this.buffer.put(value);
+      }
+
+      void putInt(int value) throws IOException
+      {
+         ensure(Integer.BYTES);
+         this.buffer.putInt(value);
+      }
+
+      void putLong(long value) throws IOException
+      {
+         ensure(Long.BYTES);
+         this.buffer.putLong(value);
+      }
+
+      void putString(String value) throws IOException
+      {
+         byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+         putInt(bytes.length);
+         int offset = 0;
+         while (offset < bytes.length)
+         {
+            ensure(1);
+            int length = Math.min(this.buffer.remaining(),
+               bytes.length - offset);
+            this.buffer.put(bytes, offset, length);
+            offset += length;
+         }
+      }
+
+      /*
+         Feeds everything flushed from now on into the given CRC.
+      */
+      void setChecksum(CRC32 checksum)
+      {
+         this.checksum = checksum;
+      }
+
+      void flush() throws IOException
+      {
+         this.buffer.flip();
+         if (this.checksum != null)
+         {
+            this.checksum.update(this.buffer.duplicate());
+         }
+         while (this.buffer.hasRemaining())
+         {
+            this.channel.write(this.buffer);
+         }
+         this.buffer.clear();
+      }
+
+      private void ensure(int bytes) throws IOException
+      {
+         if (this.buffer.remaining() < bytes)
+         {
+            flush();
+         }
+      }
+   }
+}
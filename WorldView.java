@@ -1,15 +1,31 @@
+import java.util.Arrays;
 import processing.core.PApplet;
 import processing.core.PImage;
 
-import java.util.Optional;
-
+/*
+   Draws the part of the world under the viewport.  The screen keeps the
+   previous frame, so after the first full draw only tiles the world
+   reports as changed are painted again; shifting the view forces another
+   full draw.  The view only listens to the world when the world is
+   updated on the drawing thread; with a simulation thread it draws from
+   ViewFrames instead.
+*/
 final class WorldView
+   implements CellListener
 {
    private PApplet screen;
    private WorldModel world;
    private int tileWidth;
    private int tileHeight;
    private Viewport viewport;
+   private final boolean dirtyTiles[];
+   private boolean fullRedraw;
+
+   /* what the screen shows, for drawing from ViewFrames */
+   private final PImage shownBackground[];
+   private final PImage shownOccupant[];
+   private int shownCol;
+   private int shownRow;
 
    public WorldView(int numRows, int numCols, PApplet screen, WorldModel world,
       int tileWidth, int tileHeight)
@@ -19,41 +35,176 @@ final class WorldView
       this.tileWidth = tileWidth;
       this.tileHeight = tileHeight;
       this.viewport = new Viewport(numRows, numCols);
+      this.dirtyTiles = new boolean[numRows * numCols];
+      this.fullRedraw = true;
+      this.shownBackground = new PImage[numRows * numCols];
+      this.shownOccupant = new PImage[numRows * numCols];
+   }
+
+   public Viewport getViewport()
+   {
+      return viewport;
+   }
+
+   /*
+      Draws from a frame captured by the simulation thread rather than
+      from the world.  Tiles whose images match what is already on screen
+      are skipped, unless the frame was taken at another origin.
+   */
+   public void drawFrame(ViewFrame frame)
+   {
+      if (frame.getCol() < 0)
+      {
+         return;
+      }
+
+      boolean full = this.fullRedraw || frame.getCol() != this.shownCol ||
+         frame.getRow() != this.shownRow;
+      int numCols = frame.getNumCols();
+      for (int tile = 0; tile < this.shownBackground.length; tile++)
+      {
+         PImage background = frame.getBackground(tile);
+         PImage occupant = frame.getOccupant(tile);
+         if (!full && background == this.shownBackground[tile] &&
+            occupant == this.shownOccupant[tile])
+         {
+            continue;
+         }
+
+         int x = (tile % numCols) * this.tileWidth;
+         int y = (tile / numCols) * this.tileHeight;
+         if (background != null)
+         {
+            this.screen.image(background, x, y);
+         }
+         if (occupant != null)
+         {
+            this.screen.image(occupant, x, y);
+         }
+         this.shownBackground[tile] = background;
+         this.shownOccupant[tile] = occupant;
+      }
+
+      this.fullRedraw = false;
+      this.shownCol = frame.getCol();
+      this.shownRow = frame.getRow();
    }
 
    public void drawViewport()
    {
-      drawBackground();
-      drawEntities();
+      if (this.fullRedraw)
+      {
+         this.fullRedraw = false;
+         Arrays.fill(this.dirtyTiles, false);
+         drawBackground();
+         drawEntities();
+      }
+      else
+      {
+         drawDirtyTiles();
+      }
    }
 
-   public void drawEntities()
+   /*
+      Marks the tile showing the cell, if any.  A parallel animation sweep
+      marks tiles from pool threads; those marks only ever store true, and
+      the sweep is joined before updateOnTime returns to draw.
+   */
+   public void cellChanged(int x, int y)
+   {
+      int col = this.viewport.worldToViewportCol(x);
+      int row = this.viewport.worldToViewportRow(y);
+      if (col >= 0 && col < this.viewport.getNumCols() && row >= 0 &&
+         row < this.viewport.getNumRows())
+      {
+         this.dirtyTiles[row * this.viewport.getNumCols() + col] = true;
+      }
+   }
+
+   private void drawDirtyTiles()
    {
-      for (Entity entity : this.world.getEntities())
+      int numCols = this.viewport.getNumCols();
+      for (int tile = 0; tile < this.dirtyTiles.length; tile++)
       {
-         Point pos = entity.position;
+         if (!this.dirtyTiles[tile])
+         {
+            continue;
+         }
+         this.dirtyTiles[tile] = false;
+
+         int col = tile % numCols;
+         int row = tile / numCols;
+         int worldCol = this.viewport.viewportToWorldCol(col);
+         int worldRow = this.viewport.viewportToWorldRow(row);
+         if (!this.world.withinBounds(worldCol, worldRow))
+         {
+            continue;
+         }
 
-         if (this.viewport.contains(pos))
+         this.screen.image(Entity.getCurrentImage(
+            this.world.getBackgroundCell(worldCol, worldRow)),
+            col * this.tileWidth, row * this.tileHeight);
+
+         Entity occupant = this.world.getOccupancyCell(worldCol, worldRow);
+         if (occupant != null)
          {
-            Point viewPoint = this.viewport.worldToViewport(pos.getX(), pos.getY());
-            this.screen.image(Entity.getCurrentImage(entity),
-               viewPoint.getX() * this.tileWidth, viewPoint.getY() * this.tileHeight);
+            this.screen.image(Entity.getCurrentImage(occupant),
+               col * this.tileWidth, row * this.tileHeight);
          }
       }
    }
 
-   public void drawBackground()
+   /*
+      Walks the occupancy cells under the viewport, so the cost depends
+      on the viewport's size rather than on how many entities exist.
+   */
+   public void drawEntities()
    {
       for (int row = 0; row < this.viewport.getNumRows(); row++)
       {
+         int worldRow = this.viewport.viewportToWorldRow(row);
          for (int col = 0; col < this.viewport.getNumCols(); col++)
          {
-            Point worldPoint = this.viewport.viewportToWorld(col, row);
-            Optional<PImage> image = this.world.getBackgroundImage(
-                    worldPoint);
-            if (image.isPresent())
+            int worldCol = this.viewport.viewportToWorldCol(col);
+            if (!this.world.isOccupied(worldCol, worldRow))
+            {
+               continue;
+            }
+
+            this.screen.image(Entity.getCurrentImage(
+               this.world.getOccupancyCell(worldCol, worldRow)),
+               col * this.tileWidth, row * this.tileHeight);
+         }
+      }
+   }
+
+   /*
+      Walks each row a run of identical background at a time, looking the
+      image up once per run.
+   */
+   public void drawBackground()
+   {
+      int numCols = this.viewport.getNumCols();
+      for (int row = 0; row < this.viewport.getNumRows(); row++)
+      {
+         int worldRow = this.viewport.viewportToWorldRow(row);
+         int col = 0;
+         while (col < numCols)
+         {
+            int worldCol = this.viewport.viewportToWorldCol(col);
+            if (!this.world.withinBounds(worldCol, worldRow))
+            {
+               col++;
+               continue;
+            }
+
+            int end = this.world.getBackgroundRunEnd(worldCol, worldRow,
+               worldCol + numCols - col);
+            PImage image = Entity.getCurrentImage(
+               this.world.getBackgroundCell(worldCol, worldRow));
+            for (; worldCol < end; worldCol++, col++)
             {
-               this.screen.image(image.get(), col * this.tileWidth,
+               this.screen.image(image, col * this.tileWidth,
                   row * this.tileHeight);
             }
          }
@@ -68,5 +219,6 @@ final class WorldView
          this.world.getNumRows() - this.viewport.getNumRows());
 
       this.viewport.shift(newCol, newRow);
+      this.fullRedraw = true;
    }
 }